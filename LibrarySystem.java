@@ -1,34 +1,56 @@
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.File;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+import org.sqlite.SQLiteConfig;
 
 // ======================= Database & Utils =======================
 class Database {
-    private static final String DB_URL = "jdbc:sqlite:library.db";
+    static final String DEFAULT_PATH = "library.db";
+    // مكتب آخر يكتب الآن: ننتظر قليلاً داخل SQLite ثم نعيد المحاولة بانتظار يتضاعف
+    static final int BUSY_TIMEOUT_MS = 100, BUSY_RETRIES = 6, BUSY_BACKOFF_MS = 25;
+    private final String path;
     private Connection conn;
+    private CirculationAnalytics analytics;
+    private BranchRegistry branches;
+    private CatalogIndex catalogIndex;
 
-    public Database() {
+    public Database() { this(DEFAULT_PATH); }
+
+    public Database(String path) {
+        this.path = path;
         try {
-            conn = DriverManager.getConnection(DB_URL);
+            conn = DriverManager.getConnection("jdbc:sqlite:" + path);
             System.out.println("Connected to SQLite.");
             createTables();
             seedDefaults();
         } catch (SQLException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "DB Error: " + e.getMessage());
+            if (!GraphicsEnvironment.isHeadless()) JOptionPane.showMessageDialog(null, "DB Error: " + e.getMessage());
         }
     }
 
     private void createTables() throws SQLException {
         Statement st = conn.createStatement();
         st.execute("PRAGMA foreign_keys = ON");
+        st.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
 
         st.execute("CREATE TABLE IF NOT EXISTS users (" +
                 "id INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -69,6 +91,146 @@ class Database {
         st.execute("CREATE TABLE IF NOT EXISTS settings (" +
                 "key TEXT PRIMARY KEY," +
                 "value TEXT NOT NULL)");
+
+        // رقم نسخة الكتالوج، تتحقق به لقطة catalog على القرص
+        for (String op : new String[]{"INSERT","UPDATE","DELETE"}) {
+            st.execute("CREATE TRIGGER IF NOT EXISTS books_catalog_version_" + op.toLowerCase() +
+                    " AFTER " + op + " ON books BEGIN " +
+                    "UPDATE settings SET value = CAST(value AS INTEGER) + 1 WHERE key='catalog_version'; END");
+        }
+
+        // الإعارات المفتوحة فقط، مرتبة حسب تاريخ الاستحقاق
+        st.execute("CREATE INDEX IF NOT EXISTS idx_transactions_open_due ON transactions(due_date) WHERE return_date IS NULL");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_transactions_open_book ON transactions(book_id) WHERE return_date IS NULL");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_transactions_open_user ON transactions(user_id) WHERE return_date IS NULL");
+
+        // رقم نسخة الصف للتحديث المشروط حين تشارك عدة مكاتب نفس القاعدة
+        for (String table : new String[]{"books","users","reservations"}) {
+            addColumnIfMissing(st, table, "version", "INTEGER NOT NULL DEFAULT 0");
+        }
+
+        // قائمة المتاح/المعار، والغرامات فقط
+        st.execute("CREATE INDEX IF NOT EXISTS idx_books_status ON books(status, title)");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_transactions_fined ON transactions(id) WHERE fine > 0");
+
+        // مفاتيح ON DELETE CASCADE، بدونها حذف كتاب أو مستخدم يمر على كل الجدول
+        st.execute("CREATE INDEX IF NOT EXISTS idx_transactions_book ON transactions(book_id)");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_transactions_user ON transactions(user_id)");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_reservations_book ON reservations(book_id)");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_reservations_user ON reservations(user_id)");
+
+        st.execute("CREATE TABLE IF NOT EXISTS outbox (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "user_id INTEGER NOT NULL," +
+                "kind TEXT NOT NULL," + // due_soon, overdue
+                "subject TEXT NOT NULL," +
+                "body TEXT NOT NULL," +
+                "created_at TEXT NOT NULL," +
+                "sent_at TEXT," +
+                "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE)");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_outbox_user ON outbox(user_id)");
+
+        st.execute("CREATE TABLE IF NOT EXISTS notices_sent (" +
+                "transaction_id INTEGER NOT NULL," +
+                "kind TEXT NOT NULL," +
+                "outbox_id INTEGER NOT NULL," +
+                "PRIMARY KEY(transaction_id, kind)," +
+                "FOREIGN KEY(transaction_id) REFERENCES transactions(id) ON DELETE CASCADE)");
+
+        st.execute("CREATE TABLE IF NOT EXISTS notification_runs (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "started_at TEXT NOT NULL," +
+                "duration_ms INTEGER NOT NULL," +
+                "scanned INTEGER NOT NULL," +
+                "notices INTEGER NOT NULL," +
+                "users INTEGER NOT NULL)");
+
+        // عدد مرات فتح كل نموذج وزمنه، يختار منه Windows ما يُبنى مسبقاً بعد الدخول
+        st.execute("CREATE TABLE IF NOT EXISTS form_opens (" +
+                "form TEXT PRIMARY KEY," +
+                "opens INTEGER NOT NULL DEFAULT 0," +
+                "preloads INTEGER NOT NULL DEFAULT 0," +
+                "total_ms REAL NOT NULL DEFAULT 0," +
+                "max_ms REAL NOT NULL DEFAULT 0)");
+
+        createAccounts(st);
+    }
+
+    private void addColumnIfMissing(Statement st, String table, String column, String decl) throws SQLException {
+        try (ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) if (column.equalsIgnoreCase(rs.getString("name"))) return;
+        }
+        st.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + decl);
+    }
+
+    // رصيد كل مستخدم (إعارات مفتوحة وغرامات غير مسددة) تحدّثه triggers في نفس معاملة الإعارة/الإرجاع/التسديد
+    private void createAccounts(Statement st) throws SQLException {
+        boolean exists;
+        try (ResultSet rs = st.executeQuery("SELECT 1 FROM sqlite_master WHERE type='table' AND name='accounts'")) {
+            exists = rs.next();
+        }
+        st.execute("CREATE TABLE IF NOT EXISTS accounts (" +
+                "user_id INTEGER PRIMARY KEY," +
+                "open_loans INTEGER NOT NULL DEFAULT 0," +
+                "fine_balance REAL NOT NULL DEFAULT 0," +
+                "last_activity TEXT," +
+                "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE)");
+        if (!exists) {
+            st.execute("INSERT INTO accounts(user_id,open_loans,fine_balance,last_activity) " +
+                    "SELECT u.id," +
+                    "(SELECT COUNT(*) FROM transactions t WHERE t.user_id=u.id AND t.return_date IS NULL)," +
+                    "(SELECT ROUND(IFNULL(SUM(fine),0), 2) FROM transactions t WHERE t.user_id=u.id AND t.fine>0 AND t.fine_settled=0)," +
+                    "(SELECT MAX(COALESCE(t.return_date,t.borrow_date)) FROM transactions t WHERE t.user_id=u.id) " +
+                    "FROM users u");
+        }
+
+        st.execute("CREATE TRIGGER IF NOT EXISTS users_account_insert AFTER INSERT ON users BEGIN " +
+                "INSERT OR IGNORE INTO accounts(user_id) VALUES(NEW.id); END");
+
+        // الرصيد REAL يُجمع ويُطرح باستمرار، فنقرّبه لسنتين في كل خطوة حتى لا يبقى 2.8e-17 بعد التسديد.
+        // القواعد القديمة: نستبدل triggers التي لا تقرّب ونصحح الأرصدة المنحرفة مرة واحدة
+        List<String> stale = new ArrayList<>();
+        try (ResultSet rs = st.executeQuery("SELECT name FROM sqlite_master WHERE type='trigger' " +
+                "AND name LIKE 'transactions_account_%' AND sql NOT LIKE '%ROUND(%'")) {
+            while (rs.next()) stale.add(rs.getString(1));
+        }
+        for (String t : stale) st.execute("DROP TRIGGER " + t);
+        if (!stale.isEmpty()) st.execute("UPDATE accounts SET fine_balance = ROUND(fine_balance, 2)");
+
+        // مساهمة كل معاملة: مفتوحة = 1، والغرامة غير المسددة تُضاف للرصيد
+        st.execute("CREATE TRIGGER IF NOT EXISTS transactions_account_insert AFTER INSERT ON transactions BEGIN " +
+                "INSERT OR IGNORE INTO accounts(user_id) VALUES(NEW.user_id); " +
+                "UPDATE accounts SET open_loans = open_loans + (NEW.return_date IS NULL)," +
+                " fine_balance = ROUND(fine_balance + CASE WHEN NEW.fine_settled=0 THEN IFNULL(NEW.fine,0) ELSE 0 END, 2)," +
+                " last_activity = COALESCE(NEW.return_date, NEW.borrow_date, date('now','localtime'))" +
+                " WHERE user_id=NEW.user_id; END");
+        st.execute("CREATE TRIGGER IF NOT EXISTS transactions_account_update " +
+                "AFTER UPDATE OF user_id, return_date, fine, fine_settled ON transactions BEGIN " +
+                "UPDATE accounts SET open_loans = open_loans - (OLD.return_date IS NULL)," +
+                " fine_balance = ROUND(fine_balance - CASE WHEN OLD.fine_settled=0 THEN IFNULL(OLD.fine,0) ELSE 0 END, 2)" +
+                " WHERE user_id=OLD.user_id; " +
+                "INSERT OR IGNORE INTO accounts(user_id) VALUES(NEW.user_id); " +
+                "UPDATE accounts SET open_loans = open_loans + (NEW.return_date IS NULL)," +
+                " fine_balance = ROUND(fine_balance + CASE WHEN NEW.fine_settled=0 THEN IFNULL(NEW.fine,0) ELSE 0 END, 2)," +
+                " last_activity = date('now','localtime')" +
+                " WHERE user_id=NEW.user_id; END");
+        st.execute("CREATE TRIGGER IF NOT EXISTS transactions_account_delete AFTER DELETE ON transactions BEGIN " +
+                "UPDATE accounts SET open_loans = open_loans - (OLD.return_date IS NULL)," +
+                " fine_balance = ROUND(fine_balance - CASE WHEN OLD.fine_settled=0 THEN IFNULL(OLD.fine,0) ELSE 0 END, 2)" +
+                " WHERE user_id=OLD.user_id; END");
+    }
+
+    // فحص حد الاستعارة: قراءة بالمفتاح الأساسي بدل COUNT على transactions
+    public int openLoans(int userId) throws SQLException {
+        try (ResultSet rs = query(Sql.ACCOUNT_OPEN_LOANS, userId)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // الحد نفسه داخل معاملة الإعارة: مكتبان يعيران مستخدماً عند 4/5 لا ينجحان معاً
+    public void reserveLoanSlot(int userId, int maxBorrow) throws SQLException {
+        compareAndSet("User " + userId + " reached the max borrow limit (" + maxBorrow + ") at another desk.",
+                Sql.ACCOUNT_LOAN_SLOT, userId, maxBorrow);
     }
 
     private void seedDefaults() {
@@ -76,7 +238,12 @@ class Database {
                 "INSERT OR IGNORE INTO settings(key,value) VALUES" +
                         "('borrow_days','14')," +
                         "('max_borrow','5')," +
-                        "('fine_per_day','1')")) {
+                        "('fine_per_day','1')," +
+                        "('branches','Main=" + DEFAULT_PATH + "')," +
+                        "('branch_timeout_ms','2000')," +
+                        "('due_soon_days','2')," +
+                        "('notify_interval_min','60')," +
+                        "('catalog_version','0')")) {
             ps.executeUpdate();
         } catch (SQLException ignored) {}
 
@@ -87,20 +254,92 @@ class Database {
         } catch (SQLException ignored) {}
     }
 
+    public String getPath() { return path; }
+
+    interface Work { void run() throws SQLException; }
+    interface Call<T> { T run() throws SQLException; }
+
+    // كل العمليات داخل work تُحفظ معاً أو تُلغى معاً، وتُعاد كلها إذا كانت القاعدة مشغولة
+    public void inTransaction(Work work) throws SQLException {
+        retryBusy(() -> {
+            conn.setAutoCommit(false);
+            try {
+                work.run();
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    // BEGIN IMMEDIATE: قفل الكتابة يؤخذ قبل أول قراءة، فلا يختار اتصالان نفس الصفوف ثم يكتبان كلاهما
+    // (الأوامر ترسل مباشرة: setAutoCommit في المشغّل لا يعيد حالته إذا فشل BEGIN بسبب SQLITE_BUSY)
+    public void inImmediateTransaction(Work work) throws SQLException {
+        retryBusy(() -> {
+            try (Statement st = conn.createStatement()) {
+                st.execute("BEGIN IMMEDIATE");
+                try {
+                    work.run();
+                    st.execute("COMMIT");
+                } catch (SQLException | RuntimeException e) {
+                    st.execute("ROLLBACK");
+                    throw e;
+                }
+            }
+            return null;
+        });
+    }
+
+    // داخل معاملة لا نعيد جملة واحدة؛ inTransaction تعيد المعاملة كاملة
+    private <T> T retryBusy(Call<T> call) throws SQLException {
+        if (!conn.getAutoCommit()) return call.run();
+        for (int attempt = 0;; attempt++) {
+            try {
+                return call.run();
+            } catch (SQLException e) {
+                if (!isBusy(e) || attempt >= BUSY_RETRIES) throw e;
+                try {
+                    Thread.sleep((BUSY_BACKOFF_MS << attempt) + ThreadLocalRandom.current().nextInt(BUSY_BACKOFF_MS));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    static boolean isBusy(SQLException e) {
+        int code = e.getErrorCode() & 0xff; // SQLITE_BUSY = 5, SQLITE_LOCKED = 6 (مع الأكواد الموسعة)
+        return code == 5 || code == 6;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return conn.prepareStatement(sql);
+    }
+
     public ResultSet query(String sql, Object... params) throws SQLException {
         PreparedStatement ps = conn.prepareStatement(sql);
         for (int i=0;i<params.length;i++) ps.setObject(i+1, params[i]);
-        return ps.executeQuery();
+        return retryBusy(ps::executeQuery);
     }
 
     public int update(String sql, Object... params) throws SQLException {
         PreparedStatement ps = conn.prepareStatement(sql);
         for (int i=0;i<params.length;i++) ps.setObject(i+1, params[i]);
-        return ps.executeUpdate();
+        return retryBusy(ps::executeUpdate);
+    }
+
+    // تحديث مشروط: صفر صفوف يعني أن مكتباً آخر غيّر الصف بعد أن قرأناه
+    public void compareAndSet(String conflict, String sql, Object... params) throws SQLException {
+        if (update(sql, params) == 0) throw new ConflictException(conflict);
     }
 
     public String getSetting(String key, String def) {
-        try (ResultSet rs = query("SELECT value FROM settings WHERE key=?", key)) {
+        try (ResultSet rs = query(Sql.SETTING_GET, key)) {
             if (rs.next()) return rs.getString(1);
         } catch (SQLException ignored) {}
         return def;
@@ -108,16 +347,47 @@ class Database {
 
     public void setSetting(String key, String value) {
         try {
-            update("INSERT INTO settings(key,value) VALUES(?,?) ON CONFLICT(key) DO UPDATE SET value=excluded.value", key, value);
+            update(Sql.SETTING_PUT, key, value);
         } catch (SQLException e) {
             JOptionPane.showMessageDialog(null, "Settings error: " + e.getMessage());
         }
     }
 
+    // يتغير عند أي كتابة على القاعدة (من هذا الاتصال أو من اتصال آخر)
+    public String changeStamp() throws SQLException {
+        try (ResultSet a = query("PRAGMA data_version");
+             ResultSet b = query("SELECT total_changes()")) {
+            a.next(); b.next();
+            return a.getLong(1) + ":" + b.getLong(1);
+        }
+    }
+
+    public synchronized CirculationAnalytics analytics() {
+        if (analytics == null) analytics = new CirculationAnalytics(this);
+        return analytics;
+    }
+
+    public synchronized BranchRegistry branches() {
+        if (branches == null) branches = new BranchRegistry(this);
+        return branches;
+    }
+
+    public synchronized CatalogIndex catalogIndex() {
+        if (catalogIndex == null) {
+            catalogIndex = new CatalogIndex();
+            catalogIndex.buildInBackground(path);
+        }
+        return catalogIndex;
+    }
+
+    public void close() {
+        try { if (conn != null) conn.close(); } catch (SQLException ignored) {}
+    }
+
     public void backup() {
         try {
-            File src = new File("library.db");
-            File dst = new File("library_backup.db");
+            File src = new File(path);
+            File dst = new File(path.replaceFirst("\\.db$", "") + "_backup.db");
             Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
             JOptionPane.showMessageDialog(null, "Backup created: " + dst.getName());
         } catch (Exception e) {
@@ -126,17 +396,323 @@ class Database {
     }
 }
 
-class UI {
-    static void loadTable(JTable table, ResultSet rs) throws SQLException {
-        DefaultTableModel model = new DefaultTableModel();
-        int cols = rs.getMetaData().getColumnCount();
-        for (int i=1;i<=cols;i++) model.addColumn(rs.getMetaData().getColumnLabel(i));
+class ConflictException extends SQLException {
+    ConflictException(String message) { super(message); }
+}
+
+// جدول عمودي: الأرقام في مصفوفات أولية والنصوص المتكررة مرمّزة بقاموس
+class ColumnarTableModel extends AbstractTableModel {
+    private static final int UNKNOWN = 0, INT = 1, LONG = 2, DOUBLE = 3, DICT = 4, TEXT = 5, OBJECT = 6;
+    static final int DICT_LIMIT = 1024;
+
+    private interface RowOrder { int compare(int a, int b); }
+
+    private static final class Column {
+        final String name;
+        int type = UNKNOWN;
+        int[] ints;           // INT values, DICT codes
+        long[] longs;
+        double[] doubles;
+        String[] texts;
+        Object[] objects;
+        final BitSet nulls = new BitSet();
+        List<String> dict;
+        Map<String,Integer> codes;
+
+        Column(String name) { this.name = name; }
+    }
+
+    private final Column[] cols;
+    private int rows, cap;
+    private int[] view = new int[0];
+    private int viewRows;
+    private int sortCol = -1;
+    private boolean ascending = true;
+
+    private ColumnarTableModel(String[] names) {
+        cols = new Column[names.length];
+        for (int i=0;i<names.length;i++) cols[i] = new Column(names[i]);
+    }
+
+    static ColumnarTableModel from(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        String[] names = new String[md.getColumnCount()];
+        for (int i=0;i<names.length;i++) names[i] = md.getColumnLabel(i+1);
+        ColumnarTableModel m = new ColumnarTableModel(names);
         while (rs.next()) {
-            Object[] row = new Object[cols];
-            for (int i=1;i<=cols;i++) row[i-1] = rs.getObject(i);
-            model.addRow(row);
+            m.ensureCapacity(m.rows + 1);
+            for (int i=0;i<names.length;i++) m.append(m.cols[i], m.rows, rs.getObject(i+1));
+            m.rows++;
+        }
+        m.clearFilter();
+        return m;
+    }
+
+    @Override public int getRowCount() { return viewRows; }
+    @Override public int getColumnCount() { return cols.length; }
+    @Override public String getColumnName(int c) { return cols[c].name; }
+    @Override public boolean isCellEditable(int r, int c) { return false; }
+    @Override public Object getValueAt(int r, int c) { return value(cols[c], view[r]); }
+
+    // ---------- build ----------
+    private void ensureCapacity(int need) {
+        if (need <= cap) return;
+        cap = Math.max(16, Math.max(need, cap + (cap >> 1)));
+        for (Column c : cols) {
+            if (c.ints != null) c.ints = Arrays.copyOf(c.ints, cap);
+            if (c.longs != null) c.longs = Arrays.copyOf(c.longs, cap);
+            if (c.doubles != null) c.doubles = Arrays.copyOf(c.doubles, cap);
+            if (c.texts != null) c.texts = Arrays.copyOf(c.texts, cap);
+            if (c.objects != null) c.objects = Arrays.copyOf(c.objects, cap);
+        }
+    }
+
+    private void append(Column c, int row, Object v) {
+        if (v == null) { c.nulls.set(row); return; }
+        if (c.type == UNKNOWN) {
+            if (v instanceof Integer) { c.type = INT; c.ints = new int[cap]; }
+            else if (v instanceof Long) { c.type = LONG; c.longs = new long[cap]; }
+            else if (v instanceof Double || v instanceof Float) { c.type = DOUBLE; c.doubles = new double[cap]; }
+            else if (v instanceof String) { c.type = DICT; c.ints = new int[cap]; c.dict = new ArrayList<>(); c.codes = new HashMap<>(); }
+            else { c.type = OBJECT; c.objects = new Object[cap]; }
+        }
+        switch (c.type) {
+            case INT:
+                if (v instanceof Integer) { c.ints[row] = (Integer) v; return; }
+                if (v instanceof Long) {
+                    c.longs = new long[cap];
+                    for (int i=0;i<row;i++) c.longs[i] = c.ints[i];
+                    c.ints = null; c.type = LONG;
+                    c.longs[row] = (Long) v;
+                    return;
+                }
+                break;
+            case LONG:
+                if (v instanceof Integer || v instanceof Long) { c.longs[row] = ((Number) v).longValue(); return; }
+                break;
+            case DOUBLE:
+                if (v instanceof Double || v instanceof Float) { c.doubles[row] = ((Number) v).doubleValue(); return; }
+                break;
+            case DICT:
+                if (v instanceof String) {
+                    Integer code = c.codes.get(v);
+                    if (code == null) {
+                        if (c.dict.size() >= DICT_LIMIT) { toText(c, row); c.texts[row] = (String) v; return; }
+                        code = c.dict.size();
+                        c.dict.add((String) v);
+                        c.codes.put((String) v, code);
+                    }
+                    c.ints[row] = code;
+                    return;
+                }
+                break;
+            case TEXT:
+                if (v instanceof String) { c.texts[row] = (String) v; return; }
+                break;
+            case OBJECT:
+                c.objects[row] = v;
+                return;
+        }
+        // نوع مختلط: نرجع للتخزين العام
+        Object[] objs = new Object[cap];
+        for (int i=0;i<row;i++) objs[i] = value(c, i);
+        c.ints = null; c.longs = null; c.doubles = null; c.texts = null; c.dict = null; c.codes = null;
+        c.objects = objs; c.type = OBJECT;
+        objs[row] = v;
+    }
+
+    // قيم كثيرة مختلفة (مثل العناوين): لا فائدة من القاموس
+    private static void toText(Column c, int row) {
+        c.texts = new String[c.ints.length];
+        for (int i=0;i<row;i++) if (!c.nulls.get(i)) c.texts[i] = c.dict.get(c.ints[i]);
+        c.ints = null; c.dict = null; c.codes = null; c.type = TEXT;
+    }
+
+    private static Object value(Column c, int row) {
+        if (c.nulls.get(row)) return null;
+        switch (c.type) {
+            case INT: return c.ints[row];
+            case LONG: return c.longs[row];
+            case DOUBLE: return c.doubles[row];
+            case DICT: return c.dict.get(c.ints[row]);
+            case TEXT: return c.texts[row];
+            case OBJECT: return c.objects[row];
+            default: return null;
+        }
+    }
+
+    // ---------- sort ----------
+    void toggleSort(int col) {
+        sortBy(col, sortCol == col ? !ascending : true);
+    }
+
+    void sortBy(int col, boolean asc) {
+        sortCol = col; ascending = asc;
+        Column c = cols[col];
+        RowOrder base;
+        switch (c.type) {
+            case INT: base = (a, b) -> Integer.compare(c.ints[a], c.ints[b]); break;
+            case LONG: base = (a, b) -> Long.compare(c.longs[a], c.longs[b]); break;
+            case DOUBLE: base = (a, b) -> Double.compare(c.doubles[a], c.doubles[b]); break;
+            case DICT: {
+                // ترتيب القاموس مرة واحدة ثم مقارنة أرقام فقط
+                Integer[] byValue = new Integer[c.dict.size()];
+                for (int i=0;i<byValue.length;i++) byValue[i] = i;
+                Arrays.sort(byValue, (x, y) -> c.dict.get(x).compareToIgnoreCase(c.dict.get(y)));
+                int[] rank = new int[byValue.length];
+                for (int i=0;i<byValue.length;i++) rank[byValue[i]] = i;
+                base = (a, b) -> Integer.compare(rank[c.ints[a]], rank[c.ints[b]]);
+                break;
+            }
+            case TEXT: base = (a, b) -> c.texts[a].compareToIgnoreCase(c.texts[b]); break;
+            case OBJECT: base = (a, b) -> String.valueOf(c.objects[a]).compareTo(String.valueOf(c.objects[b])); break;
+            default: base = (a, b) -> 0;
+        }
+        RowOrder withNulls = (a, b) -> {
+            boolean na = c.nulls.get(a), nb = c.nulls.get(b);
+            if (na || nb) return na == nb ? 0 : na ? -1 : 1;
+            return base.compare(a, b);
+        };
+        RowOrder order = asc ? withNulls : (a, b) -> withNulls.compare(b, a);
+        mergeSort(view, new int[viewRows], 0, viewRows, order);
+        fireTableDataChanged();
+    }
+
+    private static void mergeSort(int[] a, int[] tmp, int from, int to, RowOrder order) {
+        if (to - from < 2) return;
+        if (to - from <= 16) {
+            for (int i=from+1;i<to;i++) {
+                int v = a[i], j = i - 1;
+                while (j >= from && order.compare(a[j], v) > 0) { a[j+1] = a[j]; j--; }
+                a[j+1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, order);
+        mergeSort(a, tmp, mid, to, order);
+        if (order.compare(a[mid-1], a[mid]) <= 0) return;
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) tmp[k++] = order.compare(a[i], a[j]) <= 0 ? a[i++] : a[j++];
+        while (i < mid) tmp[k++] = a[i++];
+        while (j < to) tmp[k++] = a[j++];
+        System.arraycopy(tmp, from, a, from, to - from);
+    }
+
+    // ---------- filter ----------
+    void clearFilter() {
+        view = new int[rows];
+        for (int i=0;i<rows;i++) view[i] = i;
+        viewRows = rows;
+        reapplySort();
+    }
+
+    // نص: يحتوي (بدون حالة الأحرف)؛ رقم: يساوي
+    void filter(String needle) {
+        String n = needle.trim().toLowerCase();
+        if (n.isEmpty()) { clearFilter(); return; }
+        Long asLong = null; Double asDouble = null;
+        try { asLong = Long.parseLong(n); } catch (NumberFormatException ignored) {}
+        try { asDouble = Double.parseDouble(n); } catch (NumberFormatException ignored) {}
+
+        // لكل عمود قاموس نحسب التطابق مرة لكل قيمة مميزة
+        boolean[][] dictHits = new boolean[cols.length][];
+        for (int c=0;c<cols.length;c++) {
+            if (cols[c].type != DICT) continue;
+            dictHits[c] = new boolean[cols[c].dict.size()];
+            for (int i=0;i<dictHits[c].length;i++) dictHits[c][i] = cols[c].dict.get(i).toLowerCase().contains(n);
+        }
+
+        int[] out = new int[rows];
+        int k = 0;
+        for (int r=0;r<rows;r++) {
+            boolean hit = false;
+            for (int c=0;c<cols.length && !hit;c++) {
+                Column col = cols[c];
+                if (col.nulls.get(r)) continue;
+                switch (col.type) {
+                    case INT: hit = asLong != null && col.ints[r] == asLong; break;
+                    case LONG: hit = asLong != null && col.longs[r] == asLong; break;
+                    case DOUBLE: hit = asDouble != null && col.doubles[r] == asDouble; break;
+                    case DICT: hit = dictHits[c][col.ints[r]]; break;
+                    case TEXT: hit = col.texts[r].toLowerCase().contains(n); break;
+                    case OBJECT: hit = String.valueOf(col.objects[r]).toLowerCase().contains(n); break;
+                }
+            }
+            if (hit) out[k++] = r;
         }
+        view = out;
+        viewRows = k;
+        reapplySort();
+    }
+
+    private void reapplySort() {
+        if (sortCol >= 0) sortBy(sortCol, ascending);
+        else fireTableDataChanged();
+    }
+}
+
+class UI {
+    static ColumnarTableModel fetch(Database db, String sql, Object... params) throws SQLException {
+        try (ResultSet rs = db.query(sql, params)) { return ColumnarTableModel.from(rs); }
+    }
+
+    // الاستعلام في خيط خلفي والعرض على خيط الواجهة حتى لا يتجمد فتح النموذج؛
+    // تحميل أحدث للنموذج نفسه يلغي نتيجة أقدم لم تصل بعد
+    static <T> void loadAsync(JFrame owner, Database.Call<T> fetch, java.util.function.Consumer<T> show) {
+        Object token = supersede(owner);
+        new SwingWorker<T,Void>() {
+            protected T doInBackground() throws SQLException { return fetch.run(); }
+
+            protected void done() {
+                if (owner.getRootPane().getClientProperty(Database.Call.class) != token) return;
+                try { show.accept(get()); }
+                catch (ExecutionException e) { JOptionPane.showMessageDialog(owner, e.getCause().getMessage()); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }.execute();
+    }
+
+    // عرض مباشر بدون استعلام: أي تحميل جارٍ لم يعد صالحاً
+    static Object supersede(JFrame owner) {
+        Object token = new Object();
+        owner.getRootPane().putClientProperty(Database.Call.class, token);
+        return token;
+    }
+
+    static void showTable(JTable table, ColumnarTableModel model) {
         table.setModel(model);
+        int v = versionColumn(table);
+        if (v >= 0) table.removeColumn(table.getColumnModel().getColumn(table.convertColumnIndexToView(v)));
+        if (table.getClientProperty("columnarSort") == null) {
+            table.putClientProperty("columnarSort", Boolean.TRUE);
+            table.getTableHeader().addMouseListener(new MouseAdapter() {
+                public void mouseClicked(MouseEvent e) {
+                    int c = table.columnAtPoint(e.getPoint());
+                    if (c >= 0 && table.getModel() instanceof ColumnarTableModel)
+                        ((ColumnarTableModel) table.getModel()).toggleSort(table.convertColumnIndexToModel(c));
+                }
+            });
+        }
+    }
+
+    // عمود version مخفي من العرض، يُقرأ من النموذج للتحديث المشروط
+    static int versionColumn(JTable table) {
+        for (int c=0;c<table.getModel().getColumnCount();c++)
+            if ("version".equals(table.getModel().getColumnName(c))) return c;
+        return -1;
+    }
+
+    static long rowVersion(JTable table, int row) {
+        int c = versionColumn(table);
+        return c < 0 ? 0 : ((Number) table.getModel().getValueAt(row, c)).longValue();
+    }
+
+    // تعارض مع مكتب آخر: نعرض السبب ثم نعيد تحميل البيانات الحالية
+    static void conflict(Component parent, ConflictException e, Runnable reload) {
+        JOptionPane.showMessageDialog(parent, e.getMessage() + (reload == null ? "" : "\nShowing the current data."),
+                "Changed at another desk", JOptionPane.WARNING_MESSAGE);
+        if (reload != null) reload.run();
     }
 
     static JPanel labeledField(String label, JComponent field) {
@@ -151,150 +727,971 @@ class UI {
     }
 }
 
-// ======================= Student Forms =======================
-class SearchBooksForm extends JFrame {
-    private final Database db;
-    private final JTable table = new JTable();
-    private final JTextField q = new JTextField();
-
-    public SearchBooksForm(Database db) {
-        this.db = db;
-        setTitle("Search Books");
-        setSize(800, 450);
-        setLocationRelativeTo(null);
-
-        JButton search = new JButton("Search");
-        search.addActionListener(e -> search());
-        JButton all = new JButton("All");
-        all.addActionListener(e -> loadAll());
-
-        JPanel top = new JPanel(new BorderLayout(6,6));
-        top.add(q, BorderLayout.CENTER);
-        JPanel btns = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-        btns.add(search); btns.add(all);
-        top.add(btns, BorderLayout.EAST);
+// ======================= SQL Registry =======================
+// كل جمل SQL التي تنفذها النماذج في مكان واحد، يفحص خططها: java LibrarySystem --check-plans
+final class Sql {
+    static final class Stmt {
+        final String name, sql;
+        final boolean scanOk;   // قراءة كاملة مقصودة (قائمة كاملة، تقرير، أو LIMIT)
+        final Object[] sample;  // معاملات تجريبية لقاعدة الفحص
+        Stmt(String name, boolean scanOk, String sql, Object[] sample) {
+            this.name = name; this.scanOk = scanOk; this.sql = sql; this.sample = sample;
+        }
+    }
 
-        add(top, BorderLayout.NORTH);
-        add(new JScrollPane(table), BorderLayout.CENTER);
+    static final List<Stmt> ALL = new ArrayList<>();
 
-        loadAll();
+    private static String indexed(String name, String sql, Object... sample) {
+        ALL.add(new Stmt(name, false, sql, sample));
+        return sql;
     }
 
-    private void search() {
-        String s = "%" + q.getText().trim() + "%";
-        try (ResultSet rs = db.query(
-                "SELECT id,title,author,category,year,status FROM books " +
-                "WHERE title LIKE ? OR author LIKE ? OR category LIKE ? ORDER BY title", s,s,s)) {
-            UI.loadTable(table, rs);
-        } catch (SQLException ex) { JOptionPane.showMessageDialog(this, ex.getMessage()); }
+    private static String scan(String name, String sql, Object... sample) {
+        ALL.add(new Stmt(name, true, sql, sample));
+        return sql;
     }
 
-    private void loadAll() {
-        try (ResultSet rs = db.query("SELECT id,title,author,category,year,status FROM books ORDER BY title")) {
-            UI.loadTable(table, rs);
-        } catch (SQLException ex) { JOptionPane.showMessageDialog(this, ex.getMessage()); }
+    // (?*) تصبح (?,?,...) بعدد n
+    static String in(String sql, int n) {
+        StringBuilder q = new StringBuilder();
+        for (int i=0;i<n;i++) q.append(i == 0 ? "?" : ",?");
+        return sql.replace("?*", q);
     }
+
+    // --- settings / accounts
+    static final String SETTING_GET = indexed("setting.get",
+            "SELECT value FROM settings WHERE key=?", "max_borrow");
+    static final String SETTING_PUT = indexed("setting.put",
+            "INSERT INTO settings(key,value) VALUES(?,?) ON CONFLICT(key) DO UPDATE SET value=excluded.value", "max_borrow", "5");
+    static final String ACCOUNT_OPEN_LOANS = indexed("account.openLoans",
+            "SELECT open_loans FROM accounts WHERE user_id=?", 7);
+    // لا يغيّر شيئاً؛ يطابق صفاً فقط إذا بقي مكان تحت الحد، ويأخذ قفل الكتابة قبل الإعارة
+    static final String ACCOUNT_LOAN_SLOT = indexed("account.loanSlot",
+            "UPDATE accounts SET open_loans=open_loans WHERE user_id=? AND open_loans < ?", 7, 5);
+    static final String ACCOUNT_SUMMARY = indexed("account.summary",
+            "SELECT open_loans, fine_balance, last_activity FROM accounts WHERE user_id=?", 7);
+    static final String ACCOUNT_LOANS = indexed("account.loans",
+            "SELECT t.id, b.title as book, t.borrow_date, t.due_date FROM transactions t " +
+            "JOIN books b ON t.book_id=b.id WHERE t.user_id=? AND t.return_date IS NULL ORDER BY t.due_date", 7);
+    static final String LAST_INSERT_ID = indexed("lastInsertId",
+            "SELECT last_insert_rowid()");
+
+    // --- books
+    static final String BOOKS_COUNT = scan("books.count",
+            "SELECT COUNT(*) FROM books");
+    static final String BOOKS_BORROWED_COUNT = indexed("books.borrowedCount",
+            "SELECT COUNT(*) FROM books WHERE status='borrowed'");
+    static final String BOOKS_BY_TITLE = scan("books.byTitle",
+            "SELECT id,title,author,category,year,status FROM books ORDER BY title");
+    static final String BOOKS_NEWEST = scan("books.newest",
+            "SELECT id,title,author,category,year,status,version FROM books ORDER BY id DESC");
+    static final String BOOKS_SEARCH_LIKE = scan("books.searchLike",
+            "SELECT id,title,author,category,year,status FROM books " +
+            "WHERE title LIKE ? OR author LIKE ? OR category LIKE ? ORDER BY title", "%an%", "%an%", "%an%");
+    static final String BOOKS_AVAILABLE = indexed("books.available",
+            "SELECT id,title,author,category,year FROM books WHERE status='available' ORDER BY title");
+    static final String BOOK_STATUS = indexed("book.status",
+            "SELECT status FROM books WHERE id=?", 11);
+    static final String BOOK_SET_STATUS = indexed("book.setStatus",
+            "UPDATE books SET status=?, version=version+1 WHERE id=?", "available", 11);
+    // يفشل (صفر صفوف) إذا أعار مكتب آخر الكتاب أولاً
+    static final String BOOK_BORROW = indexed("book.borrow",
+            "UPDATE books SET status='borrowed', version=version+1 WHERE id=? AND status='available'", 11);
+    static final String BOOK_INSERT = indexed("book.insert",
+            "INSERT INTO books(title,author,category,year,status) VALUES(?,?,?,?, 'available')", "T", "A", "C", 2000);
+    static final String BOOK_UPDATE = indexed("book.update",
+            "UPDATE books SET title=?, author=?, category=?, year=?, version=version+1 WHERE id=? AND version=?", "T", "A", "C", 2000, 11, 0);
+    static final String BOOK_DELETE = indexed("book.delete",
+            "DELETE FROM books WHERE id=? AND version=?", 11, 0);
+    static final String CATALOG_VERSION = indexed("catalog.version",
+            "SELECT value FROM settings WHERE key='catalog_version'");
+    static final String CATALOG_INDEX_ROWS = scan("catalog.indexRows",
+            "SELECT id,title,author FROM books");
+    static final String CATALOG_SNAPSHOT_ROWS = scan("catalog.snapshotRows",
+            "SELECT id,title,author,IFNULL(category,''),IFNULL(status,'') FROM books ORDER BY title");
+    // نفس ترتيب FederatedSearch.score قبل LIMIT حتى لا يُقص الأقرب: عنوان مطابق، يبدأ بـ، يحتوي، مؤلف، تصنيف
+    static final String BRANCH_SEARCH = scan("branch.search",
+            "SELECT title,author,IFNULL(category,''),status FROM books " +
+            "WHERE title LIKE ? OR author LIKE ? OR category LIKE ? " +
+            "ORDER BY CASE WHEN lower(title)=? THEN 0 WHEN title LIKE ? THEN 1 WHEN title LIKE ? THEN 2 " +
+            "WHEN author LIKE ? THEN 3 ELSE 4 END, title LIMIT ?",
+            "%an%", "%an%", "%an%", "an", "an%", "%an%", "%an%", 200);
+
+    // --- circulation
+    static final String LOAN_INSERT = indexed("loan.insert",
+            "INSERT INTO transactions(user_id,book_id,borrow_date,due_date) VALUES(?,?,?,?)", 7, 11, "2026-01-01", "2026-01-15");
+    static final String LOAN_GET = indexed("loan.get",
+            "SELECT book_id,due_date,return_date FROM transactions WHERE id=?", 13);
+    static final String LOAN_CLOSE = indexed("loan.close",
+            "UPDATE transactions SET return_date=?, fine=? WHERE id=? AND return_date IS NULL", "2026-01-20", 5.0, 13);
+    static final String LOAN_CLOSE_BY_BOOK = indexed("loan.closeByBook",
+            "UPDATE transactions SET return_date=?, fine=? WHERE book_id=? AND return_date IS NULL", "2026-01-20", 0.0, 11);
+    static final String LOANS_ACTIVE = indexed("loans.active",
+            "SELECT t.id,u.name as user, b.title as book, t.borrow_date, t.due_date " +
+            "FROM transactions t JOIN users u ON t.user_id=u.id JOIN books b ON t.book_id=b.id " +
+            "WHERE t.return_date IS NULL ORDER BY t.due_date");
+    static final String TRANSACTIONS_COUNT = scan("transactions.count",
+            "SELECT COUNT(*) FROM transactions");
+    static final String TRANSACTIONS_REPORT = scan("transactions.report",
+            "SELECT t.id, u.name as user, b.title as book, t.borrow_date, t.due_date, t.return_date, t.fine, t.fine_settled " +
+            "FROM transactions t JOIN users u ON t.user_id=u.id JOIN books b ON t.book_id=b.id ORDER BY t.id DESC");
+    static final String ANALYTICS_ROWS = scan("analytics.rows",
+            "SELECT t.book_id, IFNULL(b.category,''), b.title, t.borrow_date, t.due_date, t.return_date, t.fine, t.fine_settled " +
+            "FROM transactions t JOIN books b ON t.book_id=b.id");
+
+    // --- fines
+    static final String FINES_LIST = indexed("fines.list",
+            "SELECT t.id, u.name as user, b.title as book, t.due_date, t.return_date, t.fine, t.fine_settled, " +
+            "a.fine_balance as user_balance " +
+            "FROM transactions t JOIN users u ON t.user_id=u.id JOIN books b ON t.book_id=b.id " +
+            "LEFT JOIN accounts a ON a.user_id=t.user_id " +
+            "WHERE t.return_date IS NOT NULL AND t.fine > 0 ORDER BY t.id DESC");
+    static final String FINES_OUTSTANDING = scan("fines.outstanding",
+            "SELECT IFNULL(SUM(fine_balance),0), COUNT(*) FROM accounts WHERE fine_balance > 0");
+    static final String FINES_TOTAL = scan("fines.total",
+            "SELECT IFNULL(SUM(fine_balance),0) FROM accounts");
+    static final String FINE_SETTLE = indexed("fine.settle",
+            "UPDATE transactions SET fine_settled=1 WHERE id=? AND fine_settled=0", 13);
+
+    // --- reservations
+    static final String RESERVATION_INSERT = indexed("reservation.insert",
+            "INSERT INTO reservations(user_id,book_id,reservation_date,status) VALUES(?,?,?,?)", 7, 11, "2026-01-01", "pending");
+    static final String RESERVATIONS_LIST = scan("reservations.list",
+            "SELECT r.id,u.name as user,b.title as book,r.reservation_date,r.status,r.version " +
+            "FROM reservations r JOIN users u ON r.user_id=u.id JOIN books b ON r.book_id=b.id ORDER BY r.id DESC");
+    static final String RESERVATION_SET_STATUS = indexed("reservation.setStatus",
+            "UPDATE reservations SET status=?, version=version+1 WHERE id=? AND version=?", "completed", 3, 0);
+
+    // --- users
+    static final String USERS_COUNT = scan("users.count",
+            "SELECT COUNT(*) FROM users");
+    static final String USERS_LIST = scan("users.list",
+            "SELECT id,name,role,email,password,version FROM users ORDER BY id DESC");
+    static final String USERS_ROLES = scan("users.roles",
+            "SELECT id,name,role,email,version FROM users ORDER BY id DESC");
+    static final String USER_INSERT = indexed("user.insert",
+            "INSERT INTO users(name,role,email,password) VALUES(?,?,?,?)", "N", "Student", "n@lib.local", "x");
+    static final String USER_UPDATE = indexed("user.update",
+            "UPDATE users SET name=?, role=?, email=?, password=?, version=version+1 WHERE id=? AND version=?",
+            "N", "Student", "n@lib.local", "x", 7, 0);
+    static final String USER_SET_ROLE = indexed("user.setRole",
+            "UPDATE users SET role=?, version=version+1 WHERE id=? AND version=?", "Librarian", 7, 0);
+    static final String USER_DELETE = indexed("user.delete",
+            "DELETE FROM users WHERE id=? AND version=?", 7, 0);
+
+    // --- notifications
+    private static final String NOTICE_CANDIDATES =
+            "SELECT t.id, t.user_id, b.title, t.due_date FROM transactions t JOIN books b ON b.id=t.book_id " +
+            "WHERE t.return_date IS NULL AND %s " +
+            "AND NOT EXISTS (SELECT 1 FROM notices_sent n WHERE n.transaction_id=t.id AND n.kind=?) ORDER BY t.due_date";
+    static final String NOTICES_DUE_SOON = indexed("notices.dueSoon",
+            String.format(NOTICE_CANDIDATES, "t.due_date >= ? AND t.due_date <= ?"), "2026-01-01", "2026-01-03", "due_soon");
+    static final String NOTICES_OVERDUE = indexed("notices.overdue",
+            String.format(NOTICE_CANDIDATES, "t.due_date < ?"), "2026-01-01", "overdue");
+    static final String OUTBOX_INSERT = indexed("outbox.insert",
+            "INSERT INTO outbox(user_id,kind,subject,body,created_at) VALUES(?,?,?,?,?)", 7, "overdue", "S", "B", "2026-01-01");
+    static final String NOTICE_SENT_INSERT = indexed("notice.sent",
+            "INSERT OR IGNORE INTO notices_sent(transaction_id,kind,outbox_id) VALUES(?,?,?)", 13, "overdue", 1);
+    static final String NOTIFICATION_RUN_INSERT = indexed("notificationRun.insert",
+            "INSERT INTO notification_runs(started_at,duration_ms,scanned,notices,users) VALUES(?,?,?,?,?)", "2026-01-01", 1, 1, 1, 1);
+    static final String OUTBOX_LIST = scan("outbox.list",
+            "SELECT o.id, u.name as user, u.email, o.kind, o.subject, o.body, o.created_at, o.sent_at " +
+            "FROM outbox o JOIN users u ON o.user_id=u.id ORDER BY o.id DESC LIMIT 500");
+    static final String NOTIFICATION_RUNS = scan("notificationRuns.list",
+            "SELECT id, started_at, duration_ms, scanned, notices, users, " +
+            "CASE WHEN duration_ms > 0 THEN scanned * 1000 / duration_ms ELSE scanned END as loans_per_sec " +
+            "FROM notification_runs ORDER BY id DESC LIMIT 100");
+
+    // --- windows
+    static final String FORM_OPENS_TOP = scan("formOpens.top",
+            "SELECT form FROM form_opens ORDER BY opens DESC");
+    static final String FORM_OPENS_MERGE = indexed("formOpens.merge",
+            "INSERT INTO form_opens(form,opens,preloads,total_ms,max_ms) VALUES(?,?,?,?,?) ON CONFLICT(form) DO UPDATE SET " +
+            "opens=opens+excluded.opens, preloads=preloads+excluded.preloads, total_ms=total_ms+excluded.total_ms, " +
+            "max_ms=MAX(max_ms,excluded.max_ms)", "ManageBooksForm", 1, 0, 12.5, 12.5);
+
+    // --- batch (IN بعدد عناصر الدفعة)
+    static final String BATCH_USERS = indexed("batch.users",
+            "SELECT id FROM users WHERE id IN (?*)", 1, 2, 3);
+    static final String BATCH_BOOKS = indexed("batch.books",
+            "SELECT id,status FROM books WHERE id IN (?*)", 1, 2, 3);
+    static final String BATCH_OPEN_LOANS = indexed("batch.openLoans",
+            "SELECT book_id,user_id,due_date FROM transactions WHERE return_date IS NULL AND book_id IN (?*)", 1, 2, 3);
+    static final String BATCH_OPEN_COUNTS = indexed("batch.openCounts",
+            "SELECT user_id,open_loans FROM accounts WHERE user_id IN (?*)", 1, 2, 3);
+
+    private Sql() {}
 }
 
-class BorrowBookForm extends JFrame {
-    private final Database db;
-    private final JTextField tfUser = new JTextField();
-    private final JTextField tfBook = new JTextField();
+// ======================= Catalog Index =======================
+// فهرس ثلاثيات (trigrams) في الذاكرة على العنوان والمؤلف للبحث التقريبي أثناء الكتابة
+class CatalogIndex {
+    static final int CANDIDATES = 300;
+    static final int MIN_GRAMS = 4;
+    static final int POSTING_BUDGET = 100_000;
+    static final int SNAPSHOT_CHECK_SECONDS = 30;
+
+    private static final class IntList {
+        int[] a = new int[4];
+        int n;
+
+        void add(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n << 1);
+            a[n++] = v;
+        }
+    }
 
-    public BorrowBookForm(Database db) {
-        this.db = db;
-        setTitle("Borrow Book");
-        setSize(380, 200);
-        setLocationRelativeTo(null);
-        setLayout(new GridLayout(0,1,6,6));
+    private final Map<Long,IntList> postings = new HashMap<>();
+    private final Map<Integer,Integer> slotOfId = new HashMap<>();
+    private int[] ids = new int[16];
+    private String[] texts = new String[16];   // normalized title + author
+    private String[] titles = new String[16];
+    private final BitSet dead = new BitSet();
+    private int slots, deadCount;
+    private int[] hits = new int[16];
+    private final IntList touched = new IntList();
+    private volatile boolean ready;
+    private volatile CatalogSnapshot snapshot;
+    private Set<Integer> touchedWhileBuilding = new HashSet<>();
+    private ScheduledExecutorService exec;
+    private Runnable refresh;
+    private boolean refreshQueued;
+
+    boolean isReady() { return ready; }
+
+    int size() { return slotOfId.size(); }
+
+    // لقطة الكتالوج تُربط فوراً قبل فتح أي اتصال، فيعمل البحث منها من أول لحظة.
+    // البناء في خيط خلفي على اتصال مستقل حتى لا تتعطل الواجهة، وSQLite هناك فقط لفحص رقم النسخة وإعادة الكتابة
+    void buildInBackground(String dbPath) {
+        CatalogSnapshot snap = CatalogSnapshot.openLatest(dbPath);
+        snapshot = snap;
+        exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "catalog-index");
+            t.setDaemon(true);
+            return t;
+        });
+        exec.execute(() -> {
+            Database own = new Database(dbPath);
+            try {
+                if (snap != null && snap.version == CatalogSnapshot.currentVersion(own)) {
+                    build(snap);
+                } else {
+                    build(own);
+                    snapshot = CatalogSnapshot.rewrite(own);
+                }
+            } catch (Exception e) { e.printStackTrace(); }
+            // إعادة كتابة اللقطة في الخلفية بعد أي تغيير على الكتب
+            Runnable check = () -> {
+                synchronized (this) { refreshQueued = false; }
+                try {
+                    CatalogSnapshot cur = snapshot;
+                    if (cur == null || cur.version != CatalogSnapshot.currentVersion(own))
+                        snapshot = CatalogSnapshot.rewrite(own);
+                } catch (Exception e) { e.printStackTrace(); }
+            };
+            synchronized (this) { refresh = check; }
+            exec.scheduleWithFixedDelay(check, SNAPSHOT_CHECK_SECONDS, SNAPSHOT_CHECK_SECONDS, TimeUnit.SECONDS);
+        });
+    }
 
-        add(UI.labeledField("User ID:", tfUser));
-        add(UI.labeledField("Book ID:", tfBook));
+    // تعديل من هذه النافذة: نتائج البحث تُعرض من اللقطة فلا ننتظر الفحص الدوري
+    private void refreshSoon() {
+        if (refresh == null || refreshQueued) return;
+        refreshQueued = true;
+        exec.schedule(refresh, 1, TimeUnit.SECONDS);
+    }
 
-        JButton borrow = new JButton("Borrow");
-        borrow.addActionListener(e -> doBorrow());
-        add(borrow);
+    // لقطة صالحة للبحث الفوري إلى أن يصبح الفهرس جاهزاً
+    CatalogSnapshot snapshot() { return snapshot; }
+
+    void build(Database db) throws SQLException {
+        int cap;
+        try (ResultSet rs = db.query(Sql.BOOKS_COUNT)) { rs.next(); cap = rs.getInt(1); }
+        int[] idRows = new int[cap];
+        String[] titleRows = new String[cap], authorRows = new String[cap];
+        int n = 0;
+        try (ResultSet rs = db.query(Sql.CATALOG_INDEX_ROWS)) {
+            while (rs.next() && n < cap) {
+                idRows[n] = rs.getInt(1);
+                titleRows[n] = rs.getString(2);
+                authorRows[n] = rs.getString(3);
+                n++;
+            }
+        }
+        load(idRows, titleRows, authorRows, n);
     }
 
-    private void doBorrow() {
-        try {
-            int userId = Integer.parseInt(tfUser.getText().trim());
-            int bookId = Integer.parseInt(tfBook.getText().trim());
+    void build(CatalogSnapshot snap) {
+        int[] idRows = new int[snap.count];
+        String[] titleRows = new String[snap.count], authorRows = new String[snap.count];
+        for (int i=0;i<snap.count;i++) {
+            idRows[i] = snap.id(i);
+            titleRows[i] = snap.title(i);
+            authorRows[i] = snap.author(i);
+        }
+        load(idRows, titleRows, authorRows, snap.count);
+    }
 
-            // تحقق من الحد الأقصى للاستعارة
-            int maxBorrow = Integer.parseInt(db.getSetting("max_borrow","5"));
-            try (ResultSet rs = db.query("SELECT COUNT(*) FROM transactions WHERE user_id=? AND return_date IS NULL", userId)) {
-                if (rs.next() && rs.getInt(1) >= maxBorrow) {
-                    JOptionPane.showMessageDialog(this, "Reached max borrow limit ("+maxBorrow+").");
-                    return;
+    private void load(int[] idRows, String[] titleRows, String[] authorRows, int n) {
+        // دفعات صغيرة حتى لا يُحجز القفل طويلاً أثناء التعديلات من الواجهة
+        for (int from=0;from<n;from+=10_000) {
+            synchronized (this) {
+                for (int i=from;i<Math.min(from + 10_000, n);i++) {
+                    if (!touchedWhileBuilding.contains(idRows[i])) index(idRows[i], titleRows[i], authorRows[i]);
                 }
             }
+        }
+        synchronized (this) {
+            touchedWhileBuilding = null;
+            ready = true;
+        }
+    }
 
-            // تحقق حالة الكتاب
-            try (ResultSet rs = db.query("SELECT status FROM books WHERE id=?", bookId)) {
-                if (!rs.next()) { JOptionPane.showMessageDialog(this, "Book not found."); return; }
-                if (!"available".equalsIgnoreCase(rs.getString(1))) {
-                    JOptionPane.showMessageDialog(this, "Book is not available.");
-                    return;
-                }
-            }
+    synchronized void put(int id, String title, String author) {
+        if (touchedWhileBuilding != null) touchedWhileBuilding.add(id);
+        index(id, title, author);
+        refreshSoon();
+    }
 
-            int days = Integer.parseInt(db.getSetting("borrow_days","14"));
-            LocalDate b = LocalDate.now();
-            LocalDate d = b.plusDays(days);
+    private void index(int id, String title, String author) {
+        removeSlot(id);
+        if (slots == ids.length) {
+            int cap = slots << 1;
+            ids = Arrays.copyOf(ids, cap);
+            texts = Arrays.copyOf(texts, cap);
+            titles = Arrays.copyOf(titles, cap);
+        }
+        int slot = slots++;
+        ids[slot] = id;
+        titles[slot] = title;
+        texts[slot] = normalize((title == null ? "" : title) + " " + (author == null ? "" : author));
+        slotOfId.put(id, slot);
+        for (long g : trigrams(texts[slot])) postings.computeIfAbsent(g, k -> new IntList()).add(slot);
+    }
 
-            db.update("INSERT INTO transactions(user_id,book_id,borrow_date,due_date) VALUES(?,?,?,?)",
-                    userId, bookId, b.toString(), d.toString());
-            db.update("UPDATE books SET status='borrowed' WHERE id=?", bookId);
+    synchronized void remove(int id) {
+        if (touchedWhileBuilding != null) touchedWhileBuilding.add(id);
+        removeSlot(id);
+        refreshSoon();
+    }
 
-            JOptionPane.showMessageDialog(this, "Borrowed. Due: " + d);
-        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: "+ex.getMessage()); }
+    private void removeSlot(int id) {
+        Integer slot = slotOfId.remove(id);
+        if (slot == null) return;
+        dead.set(slot);
+        texts[slot] = null;
+        titles[slot] = null;
+        if (++deadCount > 1024 && deadCount > slotOfId.size()) compact();
     }
-}
 
-class ReturnBookForm extends JFrame {
-    private final Database db;
-    private final JTextField tfTrans = new JTextField();
+    // إعادة ترقيم الخانات الحية وحذف الميتة من القوائم
+    private void compact() {
+        int[] remap = new int[slots];
+        int n = 0;
+        for (int s=0;s<slots;s++) {
+            if (dead.get(s)) { remap[s] = -1; continue; }
+            remap[s] = n;
+            ids[n] = ids[s]; texts[n] = texts[s]; titles[n] = titles[s];
+            slotOfId.put(ids[n], n);
+            n++;
+        }
+        Arrays.fill(texts, n, slots, null);
+        Arrays.fill(titles, n, slots, null);
+        for (Iterator<IntList> it = postings.values().iterator(); it.hasNext(); ) {
+            IntList l = it.next();
+            int k = 0;
+            for (int i=0;i<l.n;i++) if (remap[l.a[i]] >= 0) l.a[k++] = remap[l.a[i]];
+            l.n = k;
+            if (k == 0) it.remove();
+        }
+        slots = n;
+        dead.clear();
+        deadCount = 0;
+    }
 
-    public ReturnBookForm(Database db) {
-        this.db = db;
-        setTitle("Return Book");
-        setSize(380, 160);
-        setLocationRelativeTo(null);
-        setLayout(new GridLayout(0,1,6,6));
+    // يرجع أرقام الكتب مرتبة حسب الأقرب
+    synchronized int[] search(String query, int limit) {
+        String q = normalize(query);
+        long[] grams = trigrams(q);
+        if (grams.length == 0) return new int[0];
+        if (hits.length < slots) hits = new int[ids.length];
+
+        // نبدأ بالثلاثيات النادرة ونتوقف عند الميزانية؛ الشائعة مثل "the" لا تضيف تمييزاً
+        IntList[] lists = new IntList[grams.length];
+        int n = 0;
+        for (long g : grams) { IntList l = postings.get(g); if (l != null) lists[n++] = l; }
+        Arrays.sort(lists, 0, n, (x, y) -> Integer.compare(x.n, y.n));
+        int used = 0, scanned = 0;
+        while (used < n && (used < MIN_GRAMS || scanned + lists[used].n <= POSTING_BUDGET)) scanned += lists[used++].n;
+
+        IntList touched = this.touched;
+        touched.n = 0;
+        for (int g=0;g<used;g++) {
+            IntList l = lists[g];
+            for (int i=0;i<l.n;i++) if (hits[l.a[i]]++ == 0) touched.add(l.a[i]);
+        }
 
-        add(UI.labeledField("Transaction ID:", tfTrans));
-        JButton ret = new JButton("Return");
-        ret.addActionListener(e -> doReturn());
-        add(ret);
+        // أعلى المرشحين في عدد التطابقات فقط يدخلون مرحلة مسافة التحرير (توزيع بالعدد بدل الفرز)
+        int min = Math.max(1, used / 3);
+        int[] perCount = new int[used + 1];
+        for (int i=0;i<touched.n;i++) if (!dead.get(touched.a[i])) perCount[hits[touched.a[i]]]++;
+        int cut = used, taken = perCount[used];
+        while (cut > min && taken < CANDIDATES) taken += perCount[--cut];
+        int[] c = new int[Math.min(taken, CANDIDATES)];
+        int k = 0;
+        for (int pass=0;pass<2;pass++) {
+            for (int i=0;i<touched.n && k<c.length;i++) {
+                int s = touched.a[i];
+                if ((pass == 0 ? hits[s] > cut : hits[s] == cut) && !dead.get(s)) c[k++] = s;
+            }
+        }
+
+        String[] qTokens = q.trim().split(" +");
+        double[] score = new double[c.length];
+        for (int i=0;i<c.length;i++) score[i] = score(qTokens, q.trim(), texts[c[i]]) + hits[c[i]] / (double) (used * 10);
+        for (int i=0;i<touched.n;i++) hits[touched.a[i]] = 0;
+
+        Integer[] order = new Integer[c.length];
+        for (int i=0;i<order.length;i++) order[i] = i;
+        final int[] slotsOf = c;
+        Arrays.sort(order, (x, y) -> score[x] != score[y] ? Double.compare(score[y], score[x])
+                : titles[slotsOf[x]].compareToIgnoreCase(titles[slotsOf[y]]));
+
+        int[] out = new int[Math.min(limit, order.length)];
+        for (int i=0;i<out.length;i++) out[i] = ids[c[order[i]]];
+        return out;
     }
 
-    private void doReturn() {
-        try {
-            int tid = Integer.parseInt(tfTrans.getText().trim());
-            ResultSet rs = db.query("SELECT book_id,due_date,return_date FROM transactions WHERE id=?", tid);
-            if (!rs.next()) { JOptionPane.showMessageDialog(this, "Transaction not found."); return; }
-            if (rs.getString("return_date") != null) { JOptionPane.showMessageDialog(this, "Already returned."); return; }
+    // لكل كلمة في الاستعلام: أقرب كلمة في النص؛ الكلمة الأخيرة تُقارن كبادئة (الكتابة لم تنتهِ)
+    private double score(String[] qTokens, String q, String text) {
+        double s = text.contains(q) ? 1 : 0;
+        for (int t=0;t<qTokens.length;t++) {
+            String qt = qTokens[t];
+            boolean last = t == qTokens.length - 1;
+            int best = qt.length();
+            for (int from=0, len=text.length(); from<len && best>0; ) {
+                int to = text.indexOf(' ', from);
+                if (to < 0) to = len;
+                if (to > from) {
+                    int end = last ? Math.min(to, from + qt.length()) : to;
+                    best = Math.min(best, editDistance(qt, text, from, end, best));
+                }
+                from = to + 1;
+            }
+            s += 1.0 - (double) best / Math.max(1, qt.length());
+        }
+        return s;
+    }
 
-            int bookId = rs.getInt("book_id");
-            LocalDate due = LocalDate.parse(rs.getString("due_date"));
-            LocalDate retDate = LocalDate.now();
-            long late = Math.max(0, ChronoUnit.DAYS.between(due, retDate));
-            double finePerDay = Double.parseDouble(db.getSetting("fine_per_day","1"));
-            double fine = late * finePerDay;
+    private int[] prev2 = new int[32], prev = new int[32], cur = new int[32];
+
+    // Damerau (optimal string alignment) بين a و b[from,to) مع توقف مبكر عند تجاوز الحد
+    private int editDistance(String a, String b, int from, int to, int bound) {
+        int n = a.length(), m = to - from;
+        if (Math.abs(n - m) >= bound) return bound;
+        if (prev.length <= m) { prev2 = new int[m + 1]; prev = new int[m + 1]; cur = new int[m + 1]; }
+        int[] p2 = prev2, p = prev, c = cur;
+        for (int j=0;j<=m;j++) p[j] = j;
+        for (int i=1;i<=n;i++) {
+            c[0] = i;
+            int rowMin = i;
+            char ai = a.charAt(i-1);
+            for (int j=1;j<=m;j++) {
+                char bj = b.charAt(from + j - 1);
+                int v = Math.min(Math.min(p[j] + 1, c[j-1] + 1), p[j-1] + (ai == bj ? 0 : 1));
+                if (i > 1 && j > 1 && ai == b.charAt(from + j - 2) && a.charAt(i-2) == bj)
+                    v = Math.min(v, p2[j-2] + 1);
+                c[j] = v;
+                if (v < rowMin) rowMin = v;
+            }
+            if (rowMin >= bound) return bound;
+            int[] t = p2; p2 = p; p = c; c = t;
+        }
+        return Math.min(p[m], bound);
+    }
 
-            db.update("UPDATE transactions SET return_date=?, fine=? WHERE id=?", retDate.toString(), fine, tid);
-            db.update("UPDATE books SET status='available' WHERE id=?", bookId);
+    static String normalize(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 1);
+        boolean space = true;
+        for (int i=0;i<s.length();i++) {
+            char ch = Character.toLowerCase(s.charAt(i));
+            if (Character.isLetterOrDigit(ch)) { sb.append(ch); space = false; }
+            else if (!space) { sb.append(' '); space = true; }
+        }
+        return sb.toString();
+    }
 
-            JOptionPane.showMessageDialog(this, "Returned. Fine: " + fine);
-        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: "+ex.getMessage()); }
+    // كل كلمة تُحاط بمسافات: "  ab " -> "  a", " ab", "ab "
+    static long[] trigrams(String normalized) {
+        Set<Long> out = new LinkedHashSet<>();
+        for (String w : normalized.trim().split(" +")) {
+            if (w.isEmpty()) continue;
+            String p = "  " + w + " ";
+            for (int i=0;i+3<=p.length();i++)
+                out.add(((long) p.charAt(i) << 32) | ((long) p.charAt(i+1) << 16) | p.charAt(i+2));
+        }
+        long[] a = new long[out.size()];
+        int i = 0;
+        for (long g : out) a[i++] = g;
+        return a;
     }
 }
 
-class ReserveBookForm extends JFrame {
-    private final Database db;
-    private final JTextField tfUser = new JTextField();
-    private final JTextField tfBook = new JTextField();
+// لقطة ثنائية للكتالوج تُقرأ عبر memory-mapped FileChannel عند التشغيل.
+// لكل نسخة ملف باسمها (library.catalog.<version>) يُكتب مؤقتاً ثم يُنقل دفعة واحدة،
+// فلا نكتب أبداً فوق ملف قد يكون ما زال مربوطاً بالذاكرة (ويندوز يرفض ذلك)
+class CatalogSnapshot {
+    static final int MAGIC = 0x4C434154; // "LCAT"
+    static final int FORMAT = 1;
+    static final int HEADER = 32;
+    static final int RECORD = 4 + 4 + 4 + 6 * 4; // id, category, status, text/title/author (offset,len)
+
+    final File file;
+    final long version;
+    final int count;
+    private final MappedByteBuffer buf;
+    private final String[] labels;
+    private final int recordsAt, heapAt;
+    private long[] byId;   // (id << 32 | record) مرتبة، تُبنى عند أول طلب
+
+    private CatalogSnapshot(File file, MappedByteBuffer buf) {
+        this.file = file;
+        this.buf = buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT) throw new IllegalStateException("bad snapshot");
+        version = buf.getLong(8);
+        count = buf.getInt(16);
+        labels = new String[buf.getInt(20)];
+        recordsAt = buf.getInt(24);
+        heapAt = buf.getInt(28);
+        int p = HEADER;
+        for (int i=0;i<labels.length;i++) {
+            int len = buf.getInt(p);
+            labels[i] = string(p + 4, len);
+            p += 4 + len;
+        }
+    }
+
+    private static CatalogSnapshot map(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return new CatalogSnapshot(f, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    static File fileFor(String dbPath, long version) {
+        return new File(dbPath.replaceFirst("\\.db$", "") + ".catalog." + version);
+    }
+
+    // ملفات اللقطات الموجودة مع رقم النسخة من الاسم، الأحدث أولاً
+    private static List<Map.Entry<Long,File>> files(String dbPath) {
+        File base = fileFor(dbPath, 0).getAbsoluteFile();
+        String prefix = base.getName().substring(0, base.getName().length() - 1);
+        List<Map.Entry<Long,File>> out = new ArrayList<>();
+        File[] all = base.getParentFile().listFiles();
+        if (all == null) return out;
+        for (File f : all) {
+            String name = f.getName();
+            if (!name.startsWith(prefix) || !f.isFile()) continue;
+            try { out.add(new AbstractMap.SimpleEntry<>(Long.parseLong(name.substring(prefix.length())), f)); }
+            catch (NumberFormatException ignored) {}
+        }
+        out.sort((a, b) -> Long.compare(b.getKey(), a.getKey()));
+        return out;
+    }
+
+    // أحدث لقطة سليمة، أو null. الربط يقرأ الترويسة فقط فلا يكلّف شيئاً عند التشغيل
+    static CatalogSnapshot openLatest(String dbPath) {
+        for (Map.Entry<Long,File> e : files(dbPath)) {
+            File f = e.getValue();
+            if (f.length() < HEADER) continue;
+            try { return map(f); }
+            catch (IOException | RuntimeException ex) {
+                System.out.println("Ignoring catalog snapshot " + f + ": " + ex.getMessage());
+            }
+        }
+        return null;
+    }
+
+    // يزيده trigger على جدول books عند أي إضافة أو تعديل أو حذف
+    static long currentVersion(Database db) throws SQLException {
+        try (ResultSet rs = db.query(Sql.CATALOG_VERSION)) {
+            return rs.next() ? Long.parseLong(rs.getString(1)) : 0;
+        }
+    }
+
+    static CatalogSnapshot rewrite(Database db) throws SQLException, IOException {
+        long start = System.nanoTime();
+        long[] version = new long[1];
+        List<String> labels = new ArrayList<>();
+        Map<String,Integer> labelCodes = new HashMap<>();
+        int[][] ints = new int[1][];
+        byte[][][] strings = new byte[1][][];
+
+        // قراءة الرقم والصفوف داخل معاملة واحدة حتى تكون متسقة
+        db.inTransaction(() -> {
+            version[0] = currentVersion(db);
+            int cap;
+            try (ResultSet rs = db.query(Sql.BOOKS_COUNT)) { rs.next(); cap = rs.getInt(1); }
+            int[] rows = new int[cap * 3];
+            byte[][] text = new byte[cap * 3][];
+            int n = 0;
+            try (ResultSet rs = db.query(Sql.CATALOG_SNAPSHOT_ROWS)) {
+                while (rs.next() && n < cap) {
+                    String title = rs.getString(2), author = rs.getString(3);
+                    rows[3*n] = rs.getInt(1);
+                    rows[3*n+1] = labelCodes.computeIfAbsent(rs.getString(4), k -> { labels.add(k); return labels.size() - 1; });
+                    rows[3*n+2] = labelCodes.computeIfAbsent(rs.getString(5), k -> { labels.add(k); return labels.size() - 1; });
+                    text[3*n] = CatalogIndex.normalize(title + " " + author).getBytes(StandardCharsets.UTF_8);
+                    text[3*n+1] = title.getBytes(StandardCharsets.UTF_8);
+                    text[3*n+2] = author.getBytes(StandardCharsets.UTF_8);
+                    n++;
+                }
+            }
+            ints[0] = Arrays.copyOf(rows, n * 3);
+            strings[0] = Arrays.copyOf(text, n * 3);
+        });
+
+        int n = ints[0].length / 3;
+        int labelBytes = 0;
+        byte[][] labelData = new byte[labels.size()][];
+        for (int i=0;i<labelData.length;i++) { labelData[i] = labels.get(i).getBytes(StandardCharsets.UTF_8); labelBytes += 4 + labelData[i].length; }
+        int recordsAt = HEADER + labelBytes;
+        int heapAt = recordsAt + n * RECORD;
+
+        File f = fileFor(db.getPath(), version[0]).getAbsoluteFile();
+        java.nio.file.Path tmp = Files.createTempFile(f.getParentFile().toPath(), f.getName() + "-", ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(version[0]);
+                out.writeInt(n);
+                out.writeInt(labelData.length);
+                out.writeInt(recordsAt);
+                out.writeInt(heapAt);
+                for (byte[] l : labelData) { out.writeInt(l.length); out.write(l); }
+                int heap = 0;
+                for (int i=0;i<n;i++) {
+                    out.writeInt(ints[0][3*i]);
+                    out.writeInt(ints[0][3*i+1]);
+                    out.writeInt(ints[0][3*i+2]);
+                    for (int k=0;k<3;k++) {
+                        int len = strings[0][3*i+k].length;
+                        out.writeInt(heap);
+                        out.writeInt(len);
+                        heap += len;
+                    }
+                }
+                for (byte[] b : strings[0]) out.write(b);
+                out.flush();
+                ch.force(false);
+            }
+            try { Files.move(tmp, f.toPath(), StandardCopyOption.ATOMIC_MOVE); }
+            catch (IOException e) {
+                // مكتب آخر كتب النسخة نفسها وملفه قد يكون مربوطاً الآن؛ محتواه مطابق فنستعمله
+                if (!f.isFile()) throw e;
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        CatalogSnapshot snap = map(f);
+        deleteOlder(db.getPath(), snap.version);
+        System.out.println("Catalog snapshot v" + snap.version + " (" + n + " books) written in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return snap;
+    }
+
+    // محاولة فقط: ملف ما زال مربوطاً في ويندوز لا يُحذف الآن ويُحذف في إعادة كتابة لاحقة
+    private static void deleteOlder(String dbPath, long version) {
+        for (Map.Entry<Long,File> e : files(dbPath))
+            if (e.getKey() < version && !e.getValue().delete())
+                System.out.println("Catalog snapshot " + e.getValue() + " still in use; will retry");
+    }
+
+    int id(int i) { return buf.getInt(recordsAt + i * RECORD); }
+    String category(int i) { return labels[buf.getInt(recordsAt + i * RECORD + 4)]; }
+    String status(int i) { return labels[buf.getInt(recordsAt + i * RECORD + 8)]; }
+    String title(int i) { return field(i, 1); }
+    String author(int i) { return field(i, 2); }
+
+    private String field(int i, int k) {
+        int p = recordsAt + i * RECORD + 12 + k * 8;
+        return string(heapAt + buf.getInt(p), buf.getInt(p + 4));
+    }
+
+    private String string(int at, int len) {
+        byte[] b = new byte[len];
+        ByteBuffer d = buf.duplicate();
+        d.position(at);
+        d.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // أرقام السجلات لكتب الفهرس بنفس الترتيب؛ الكتب الأحدث من اللقطة تُتجاوز حتى إعادة كتابتها
+    int[] records(int[] ids) {
+        synchronized (this) {
+            if (byId == null) {
+                long[] keys = new long[count];
+                for (int i=0;i<count;i++) keys[i] = ((long) id(i) << 32) | i;
+                Arrays.sort(keys);
+                byId = keys;
+            }
+        }
+        int[] out = new int[ids.length];
+        int k = 0;
+        for (int id : ids) {
+            int at = Arrays.binarySearch(byId, (long) id << 32);
+            if (at < 0) at = -at - 1;
+            if (at < count && (int) (byId[at] >>> 32) == id) out[k++] = (int) byId[at];
+        }
+        return Arrays.copyOf(out, k);
+    }
+
+    // مسح خطي على النص المطبّع مباشرة من الذاكرة المربوطة بالملف، بترتيب العنوان.
+    // التصنيف يُطابق مرة واحدة لكل قيمة في القاموس
+    int[] find(String query, int limit) {
+        String q = CatalogIndex.normalize(query).trim();
+        byte[] needle = q.getBytes(StandardCharsets.UTF_8);
+        if (needle.length == 0) return new int[0];
+        boolean[] labelHit = new boolean[labels.length];
+        for (int i=0;i<labels.length;i++) labelHit[i] = CatalogIndex.normalize(labels[i]).contains(q);
+        int[] out = new int[limit];
+        int k = 0;
+        for (int i=0;i<count && k<limit;i++) {
+            int p = recordsAt + i * RECORD;
+            if (labelHit[buf.getInt(p + 4)]) { out[k++] = i; continue; }
+            int from = heapAt + buf.getInt(p + 12), to = from + buf.getInt(p + 16) - needle.length;
+            outer:
+            for (int s=from;s<=to;s++) {
+                for (int j=0;j<needle.length;j++) if (buf.get(s + j) != needle[j]) continue outer;
+                out[k++] = i;
+                break;
+            }
+        }
+        return Arrays.copyOf(out, k);
+    }
+}
+
+// صفوف البحث تُقرأ من اللقطة عند الرسم فقط؛ النموذج يبقي ربط ملفه حياً حتى بعد استبدال اللقطة
+class CatalogTableModel extends AbstractTableModel {
+    private static final String[] COLUMNS = {"id","title","author","category","status"};
+    private final CatalogSnapshot snap;
+    private final int[] records;   // null = كل الكتب بترتيب العنوان
+
+    CatalogTableModel(CatalogSnapshot snap, int[] records) { this.snap = snap; this.records = records; }
+
+    public int getRowCount() { return records == null ? snap.count : records.length; }
+    public int getColumnCount() { return COLUMNS.length; }
+    public String getColumnName(int c) { return COLUMNS[c]; }
+
+    public Object getValueAt(int row, int c) {
+        int i = records == null ? row : records[row];
+        switch (c) {
+            case 0: return snap.id(i);
+            case 1: return snap.title(i);
+            case 2: return snap.author(i);
+            case 3: return snap.category(i);
+            default: return snap.status(i);
+        }
+    }
+}
+
+// ======================= Student Forms =======================
+class SearchBooksForm extends JFrame implements Reloadable {
+    private static final int MAX_RESULTS = 50;
+    private final Database db;
+    private final JTable table = new JTable();
+    private final JTextField q = new JTextField();
+    private final JLabel status = new JLabel(" ");
+    private final javax.swing.Timer debounce = new javax.swing.Timer(150, e -> search());
+
+    public SearchBooksForm(Database db) {
+        this.db = db;
+        setTitle("Search Books");
+        setSize(800, 450);
+        setLocationRelativeTo(null);
+
+        JButton search = new JButton("Search");
+        search.addActionListener(e -> search());
+        JButton all = new JButton("All");
+        all.addActionListener(e -> loadAll());
+
+        // البحث أثناء الكتابة بعد توقف قصير
+        debounce.setRepeats(false);
+        q.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            public void insertUpdate(javax.swing.event.DocumentEvent e) { debounce.restart(); }
+            public void removeUpdate(javax.swing.event.DocumentEvent e) { debounce.restart(); }
+            public void changedUpdate(javax.swing.event.DocumentEvent e) { debounce.restart(); }
+        });
+
+        JPanel top = new JPanel(new BorderLayout(6,6));
+        top.add(q, BorderLayout.CENTER);
+        JPanel btns = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        btns.add(search); btns.add(all);
+        top.add(btns, BorderLayout.EAST);
+
+        add(top, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        add(status, BorderLayout.SOUTH);
+
+        loadAll();
+    }
+
+    // نعيد نفس البحث الظاهر حتى لا يفقد المستخدم ما كتبه
+    public void reload() {
+        if (q.getText().trim().isEmpty()) loadAll(); else search();
+    }
+
+    private void search() {
+        debounce.stop();
+        String text = q.getText().trim();
+        if (text.isEmpty()) { loadAll(); return; }
+        CatalogIndex index = db.catalogIndex();
+        CatalogSnapshot snap = index.snapshot();
+        // لا لقطة على القرص بعد (أول تشغيل): SQLite حتى تُكتب
+        if (snap == null) { searchLike(text); return; }
+
+        // الصفوف من اللقطة المربوطة بالذاكرة؛ الفهرس يرتّب الأقرب بعد جاهزيته
+        long start = System.nanoTime();
+        boolean ranked = index.isReady();
+        int[] records = ranked ? snap.records(index.search(text, MAX_RESULTS)) : new int[0];
+        if (records.length == 0) { ranked = false; records = snap.find(text, MAX_RESULTS); }
+        long micros = (System.nanoTime() - start) / 1000;
+        UI.supersede(this);
+        table.setModel(new CatalogTableModel(snap, records));
+        status.setText(records.length + (ranked ? " best matches (index lookup " : " matches (snapshot scan ")
+                + micros + " µs)");
+    }
+
+    private void searchLike(String text) {
+        String s = "%" + text + "%";
+        UI.loadAsync(this, () -> UI.fetch(db, Sql.BOOKS_SEARCH_LIKE, s,s,s), m -> {
+            UI.showTable(table, m);
+            status.setText(table.getRowCount() + " exact matches");
+        });
+    }
+
+    private void loadAll() {
+        CatalogSnapshot snap = db.catalogIndex().snapshot();
+        if (snap != null) {
+            UI.supersede(this);
+            table.setModel(new CatalogTableModel(snap, null));
+            status.setText(" ");
+            return;
+        }
+        UI.loadAsync(this, () -> UI.fetch(db, Sql.BOOKS_BY_TITLE), m -> {
+            UI.showTable(table, m);
+            status.setText(" ");
+        });
+    }
+}
+
+class BorrowBookForm extends JFrame {
+    private final Database db;
+    private final JTextField tfUser = new JTextField();
+    private final JTextField tfBook = new JTextField();
+
+    public BorrowBookForm(Database db) {
+        this.db = db;
+        setTitle("Borrow Book");
+        setSize(380, 200);
+        setLocationRelativeTo(null);
+        setLayout(new GridLayout(0,1,6,6));
+
+        add(UI.labeledField("User ID:", tfUser));
+        add(UI.labeledField("Book ID:", tfBook));
+
+        JButton borrow = new JButton("Borrow");
+        borrow.addActionListener(e -> doBorrow());
+        add(borrow);
+    }
+
+    private void doBorrow() {
+        try {
+            int userId = Integer.parseInt(tfUser.getText().trim());
+            int bookId = Integer.parseInt(tfBook.getText().trim());
+
+            // تحقق من الحد الأقصى للاستعارة
+            int maxBorrow = Integer.parseInt(db.getSetting("max_borrow","5"));
+            if (db.openLoans(userId) >= maxBorrow) {
+                JOptionPane.showMessageDialog(this, "Reached max borrow limit ("+maxBorrow+").");
+                return;
+            }
+
+            // تحقق حالة الكتاب
+            try (ResultSet rs = db.query(Sql.BOOK_STATUS, bookId)) {
+                if (!rs.next()) { JOptionPane.showMessageDialog(this, "Book not found."); return; }
+                if (!"available".equalsIgnoreCase(rs.getString(1))) {
+                    JOptionPane.showMessageDialog(this, "Book is not available.");
+                    return;
+                }
+            }
+
+            int days = Integer.parseInt(db.getSetting("borrow_days","14"));
+            LocalDate b = LocalDate.now();
+            LocalDate d = b.plusDays(days);
+
+            db.inTransaction(() -> {
+                db.reserveLoanSlot(userId, maxBorrow);
+                db.compareAndSet("Book " + bookId + " was just borrowed at another desk.", Sql.BOOK_BORROW, bookId);
+                db.update(Sql.LOAN_INSERT,
+                        userId, bookId, b.toString(), d.toString());
+            });
+
+            JOptionPane.showMessageDialog(this, "Borrowed. Due: " + d);
+        } catch (ConflictException ex) { UI.conflict(this, ex, null);
+        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: "+ex.getMessage()); }
+    }
+}
+
+class ReturnBookForm extends JFrame {
+    private final Database db;
+    private final JTextField tfTrans = new JTextField();
+
+    public ReturnBookForm(Database db) {
+        this.db = db;
+        setTitle("Return Book");
+        setSize(380, 160);
+        setLocationRelativeTo(null);
+        setLayout(new GridLayout(0,1,6,6));
+
+        add(UI.labeledField("Transaction ID:", tfTrans));
+        JButton ret = new JButton("Return");
+        ret.addActionListener(e -> doReturn());
+        add(ret);
+    }
+
+    private void doReturn() {
+        try {
+            int tid = Integer.parseInt(tfTrans.getText().trim());
+            ResultSet rs = db.query(Sql.LOAN_GET, tid);
+            if (!rs.next()) { JOptionPane.showMessageDialog(this, "Transaction not found."); return; }
+            if (rs.getString("return_date") != null) { JOptionPane.showMessageDialog(this, "Already returned."); return; }
+
+            int bookId = rs.getInt("book_id");
+            LocalDate due = LocalDate.parse(rs.getString("due_date"));
+            LocalDate retDate = LocalDate.now();
+            long late = Math.max(0, ChronoUnit.DAYS.between(due, retDate));
+            double finePerDay = Double.parseDouble(db.getSetting("fine_per_day","1"));
+            double fine = late * finePerDay;
+
+            db.inTransaction(() -> {
+                db.compareAndSet("Transaction " + tid + " was already returned at another desk.", Sql.LOAN_CLOSE, retDate.toString(), fine, tid);
+                db.update(Sql.BOOK_SET_STATUS, "available", bookId);
+            });
+
+            JOptionPane.showMessageDialog(this, "Returned. Fine: " + fine);
+        } catch (ConflictException ex) { UI.conflict(this, ex, null);
+        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: "+ex.getMessage()); }
+    }
+}
+
+class ReserveBookForm extends JFrame {
+    private final Database db;
+    private final JTextField tfUser = new JTextField();
+    private final JTextField tfBook = new JTextField();
 
     public ReserveBookForm(Database db) {
         this.db = db;
@@ -315,15 +1712,69 @@ class ReserveBookForm extends JFrame {
         try {
             int userId = Integer.parseInt(tfUser.getText().trim());
             int bookId = Integer.parseInt(tfBook.getText().trim());
-            db.update("INSERT INTO reservations(user_id,book_id,reservation_date,status) VALUES(?,?,?,?)",
+            db.update(Sql.RESERVATION_INSERT,
                     userId, bookId, LocalDate.now().toString(), "pending");
             JOptionPane.showMessageDialog(this, "Reserved.");
         } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: "+ex.getMessage()); }
     }
 }
 
+class MyAccountForm extends JFrame implements Reloadable {
+    private final Database db;
+    private final JTextField tfUser = new JTextField();
+    private final JLabel lLoans = new JLabel(" ");
+    private final JLabel lBalance = new JLabel(" ");
+    private final JLabel lActivity = new JLabel(" ");
+    private final JTable tblLoans = new JTable();
+
+    public MyAccountForm(Database db) {
+        this.db = db;
+        setTitle("My Account");
+        setSize(700, 420);
+        setLocationRelativeTo(null);
+
+        JButton show = new JButton("Show");
+        show.addActionListener(e -> load());
+        tfUser.addActionListener(e -> load());
+
+        JPanel top = new JPanel(new GridLayout(0,1,6,6));
+        JPanel idRow = new JPanel(new BorderLayout(6,6));
+        idRow.add(UI.labeledField("User ID:", tfUser), BorderLayout.CENTER);
+        idRow.add(show, BorderLayout.EAST);
+        top.add(idRow);
+        top.add(lLoans);
+        top.add(lBalance);
+        top.add(lActivity);
+
+        add(top, BorderLayout.NORTH);
+        add(new JScrollPane(tblLoans), BorderLayout.CENTER);
+    }
+
+    public void reload() {
+        if (!tfUser.getText().trim().isEmpty()) load();
+    }
+
+    private void load() {
+        int userId = UI.getIntField(tfUser, -1);
+        if (userId < 0) { JOptionPane.showMessageDialog(this, "Invalid user id."); return; }
+        UI.loadAsync(this, () -> {
+            try (ResultSet a = db.query(Sql.ACCOUNT_SUMMARY, userId)) {
+                if (!a.next()) return null;
+                return new Object[]{a.getInt(1), a.getDouble(2), a.getString(3), db.getSetting("max_borrow","5"),
+                        UI.fetch(db, Sql.ACCOUNT_LOANS, userId)};
+            }
+        }, r -> {
+            if (r == null) { JOptionPane.showMessageDialog(this, "User not found."); return; }
+            lLoans.setText("Open loans: " + r[0] + " / " + r[3]);
+            lBalance.setText("Outstanding fines: " + r[1]);
+            lActivity.setText("Last activity: " + (r[2] == null ? "-" : r[2]));
+            UI.showTable(tblLoans, (ColumnarTableModel) r[4]);
+        });
+    }
+}
+
 // ======================= Librarian Forms =======================
-class ManageBooksForm extends JFrame {
+class ManageBooksForm extends JFrame implements Reloadable {
     private final Database db;
     private final JTable table = new JTable();
     private final JTextField tTitle = new JTextField(), tAuthor = new JTextField(),
@@ -370,17 +1821,20 @@ class ManageBooksForm extends JFrame {
         refresh();
     }
 
+    public void reload() { refresh(); }
+
     private void refresh() {
-        try (ResultSet rs = db.query("SELECT id,title,author,category,year,status FROM books ORDER BY id DESC")) {
-            UI.loadTable(table, rs);
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+        UI.loadAsync(this, () -> UI.fetch(db, Sql.BOOKS_NEWEST), m -> UI.showTable(table, m));
     }
 
     private void addBook() {
         try {
             Integer yr = tYear.getText().trim().isEmpty()? null : Integer.parseInt(tYear.getText().trim());
-            db.update("INSERT INTO books(title,author,category,year,status) VALUES(?,?,?,?, 'available')",
+            db.update(Sql.BOOK_INSERT,
                     tTitle.getText().trim(), tAuthor.getText().trim(), tCat.getText().trim(), yr);
+            try (ResultSet rs = db.query(Sql.LAST_INSERT_ID)) {
+                if (rs.next()) db.catalogIndex().put(rs.getInt(1), tTitle.getText().trim(), tAuthor.getText().trim());
+            }
             refresh();
             clear();
         } catch (Exception e) { JOptionPane.showMessageDialog(this, "Error: "+e.getMessage()); }
@@ -392,9 +1846,11 @@ class ManageBooksForm extends JFrame {
         try {
             int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
             Integer yr = tYear.getText().trim().isEmpty()? null : Integer.parseInt(tYear.getText().trim());
-            db.update("UPDATE books SET title=?, author=?, category=?, year=? WHERE id=?",
-                    tTitle.getText().trim(), tAuthor.getText().trim(), tCat.getText().trim(), yr, id);
+            db.compareAndSet("Book " + id + " was changed or deleted at another desk; your edit was not saved.", Sql.BOOK_UPDATE,
+                    tTitle.getText().trim(), tAuthor.getText().trim(), tCat.getText().trim(), yr, id, UI.rowVersion(table, r));
+            db.catalogIndex().put(id, tTitle.getText().trim(), tAuthor.getText().trim());
             refresh();
+        } catch (ConflictException e) { UI.conflict(this, e, this::refresh);
         } catch (Exception e) { JOptionPane.showMessageDialog(this, "Error: "+e.getMessage()); }
     }
 
@@ -403,8 +1859,11 @@ class ManageBooksForm extends JFrame {
         if (r<0) { JOptionPane.showMessageDialog(this, "Select a row first."); return; }
         try {
             int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
-            db.update("DELETE FROM books WHERE id=?", id);
+            db.compareAndSet("Book " + id + " was changed or deleted at another desk; it was not deleted.", Sql.BOOK_DELETE,
+                    id, UI.rowVersion(table, r));
+            db.catalogIndex().remove(id);
             refresh(); clear();
+        } catch (ConflictException e) { UI.conflict(this, e, this::refresh);
         } catch (Exception e) { JOptionPane.showMessageDialog(this, "Error: "+e.getMessage()); }
     }
 
@@ -413,7 +1872,7 @@ class ManageBooksForm extends JFrame {
     }
 }
 
-class BorrowReturnManageForm extends JFrame {
+class BorrowReturnManageForm extends JFrame implements Reloadable {
     private final Database db;
     private final JTable tblAvailable = new JTable();
     private final JTable tblActive = new JTable();
@@ -451,16 +1910,13 @@ class BorrowReturnManageForm extends JFrame {
         loadData();
     }
 
+    public void reload() { loadData(); }
+
     private void loadData() {
-        try (ResultSet rsA = db.query(
-                "SELECT id,title,author,category,year FROM books WHERE status='available' ORDER BY title");
-             ResultSet rsT = db.query(
-                     "SELECT t.id,u.name as user, b.title as book, t.borrow_date, t.due_date " +
-                             "FROM transactions t JOIN users u ON t.user_id=u.id JOIN books b ON t.book_id=b.id " +
-                             "WHERE t.return_date IS NULL ORDER BY t.due_date")) {
-            UI.loadTable(tblAvailable, rsA);
-            UI.loadTable(tblActive, rsT);
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+        UI.loadAsync(this, () -> new ColumnarTableModel[]{UI.fetch(db, Sql.BOOKS_AVAILABLE), UI.fetch(db, Sql.LOANS_ACTIVE)}, m -> {
+            UI.showTable(tblAvailable, m[0]);
+            UI.showTable(tblActive, m[1]);
+        });
     }
 
     private void doBorrowSelected() {
@@ -473,171 +1929,923 @@ class BorrowReturnManageForm extends JFrame {
 
         try {
             int maxBorrow = Integer.parseInt(db.getSetting("max_borrow","5"));
-            try (ResultSet rs = db.query("SELECT COUNT(*) FROM transactions WHERE user_id=? AND return_date IS NULL", userId)) {
-                if (rs.next() && rs.getInt(1) >= maxBorrow) {
-                    JOptionPane.showMessageDialog(this, "Reached max borrow limit ("+maxBorrow+").");
-                    return;
+            if (db.openLoans(userId) >= maxBorrow) {
+                JOptionPane.showMessageDialog(this, "Reached max borrow limit ("+maxBorrow+").");
+                return;
+            }
+            int days = Integer.parseInt(db.getSetting("borrow_days","14"));
+            LocalDate b = LocalDate.now();
+            LocalDate d = b.plusDays(days);
+            db.inTransaction(() -> {
+                db.reserveLoanSlot(userId, maxBorrow);
+                db.compareAndSet("Book " + bookId + " was just borrowed at another desk.", Sql.BOOK_BORROW, bookId);
+                db.update(Sql.LOAN_INSERT, userId, bookId, b.toString(), d.toString());
+            });
+            loadData();
+        } catch (ConflictException e) { UI.conflict(this, e, this::loadData);
+        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    }
+
+    private void doReturnSelected() {
+        int r = tblActive.getSelectedRow();
+        if (r<0) { JOptionPane.showMessageDialog(this,"Select a transaction."); return; }
+        int tid = Integer.parseInt(String.valueOf(tblActive.getValueAt(r,0)));
+        try (ResultSet rs = db.query(Sql.LOAN_GET, tid)) {
+            if (!rs.next()) { JOptionPane.showMessageDialog(this,"Not found."); return; }
+            int bookId = rs.getInt(1);
+            LocalDate due = LocalDate.parse(rs.getString(2));
+            LocalDate ret = LocalDate.now();
+            double finePerDay = Double.parseDouble(db.getSetting("fine_per_day","1"));
+            long late = Math.max(0, ChronoUnit.DAYS.between(due, ret));
+            double fine = late * finePerDay;
+
+            db.inTransaction(() -> {
+                db.compareAndSet("Transaction " + tid + " was already returned at another desk.", Sql.LOAN_CLOSE, ret.toString(), fine, tid);
+                db.update(Sql.BOOK_SET_STATUS, "available", bookId);
+            });
+            loadData();
+        } catch (ConflictException e) { UI.conflict(this, e, this::loadData);
+        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    }
+}
+
+class ManageReservationsForm extends JFrame implements Reloadable {
+    private final Database db;
+    private final JTable table = new JTable();
+
+    public ManageReservationsForm(Database db) {
+        this.db = db;
+        setTitle("Manage Reservations");
+        setSize(900, 500);
+        setLocationRelativeTo(null);
+
+        JButton refresh = new JButton("Refresh");
+        refresh.addActionListener(e -> load());
+        JButton setCompleted = new JButton("Mark as completed");
+        setCompleted.addActionListener(e -> setStatus("completed"));
+        JButton setCanceled = new JButton("Cancel");
+        setCanceled.addActionListener(e -> setStatus("canceled"));
+
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        top.add(refresh); top.add(setCompleted); top.add(setCanceled);
+
+        add(top, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        load();
+    }
+
+    public void reload() { load(); }
+
+    private void load() {
+        UI.loadAsync(this, () -> UI.fetch(db, Sql.RESERVATIONS_LIST), m -> UI.showTable(table, m));
+    }
+
+    private void setStatus(String status) {
+        int r = table.getSelectedRow();
+        if (r<0) { JOptionPane.showMessageDialog(this,"Select a row."); return; }
+        int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
+        try {
+            db.compareAndSet("Reservation " + id + " was changed at another desk.", Sql.RESERVATION_SET_STATUS,
+                    status, id, UI.rowVersion(table, r));
+            load();
+        } catch (ConflictException e) { UI.conflict(this, e, this::load);
+        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    }
+}
+
+class ManageFinesForm extends JFrame implements Reloadable {
+    private final Database db;
+    private final JTable table = new JTable();
+    private final JLabel lOutstanding = new JLabel(" ");
+
+    public ManageFinesForm(Database db) {
+        this.db = db;
+        setTitle("Manage Fines");
+        setSize(900, 500);
+        setLocationRelativeTo(null);
+
+        JButton refresh = new JButton("Refresh");
+        refresh.addActionListener(e -> load());
+        JButton settle = new JButton("Mark Fine as Settled");
+        settle.addActionListener(e -> settleFine());
+
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        top.add(refresh); top.add(settle);
+
+        add(top, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        add(lOutstanding, BorderLayout.SOUTH);
+        load();
+    }
+
+    public void reload() { load(); }
+
+    private void load() {
+        UI.loadAsync(this, () -> {
+            try (ResultSet total = db.query(Sql.FINES_OUTSTANDING)) {
+                total.next();
+                return new Object[]{UI.fetch(db, Sql.FINES_LIST), total.getDouble(1), total.getInt(2)};
+            }
+        }, r -> {
+            UI.showTable(table, (ColumnarTableModel) r[0]);
+            lOutstanding.setText("Outstanding: " + r[1] + " across " + r[2] + " users");
+        });
+    }
+
+    private void settleFine() {
+        int r = table.getSelectedRow();
+        if (r<0) { JOptionPane.showMessageDialog(this, "Select a row."); return; }
+        int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
+        try {
+            db.compareAndSet("Fine " + id + " was already settled at another desk.", Sql.FINE_SETTLE, id);
+            load();
+        } catch (ConflictException e) { UI.conflict(this, e, this::load);
+        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    }
+}
+
+class ReportsForm extends JFrame implements Reloadable {
+    private final Database db;
+    private final JLabel lBooks = new JLabel();
+    private final JLabel lBorrowed = new JLabel();
+    private final JLabel lUsers = new JLabel();
+    private final JLabel lFines = new JLabel();
+
+    public ReportsForm(Database db) {
+        this.db = db;
+        setTitle("Reports");
+        setSize(420, 260);
+        setLocationRelativeTo(null);
+        setLayout(new GridLayout(0,1,6,6));
+
+        add(lBooks);
+        add(lBorrowed);
+        add(lUsers);
+        add(lFines);
+
+        JButton refresh = new JButton("Refresh");
+        refresh.addActionListener(e -> load());
+        add(refresh);
+
+        load();
+    }
+
+    public void reload() { load(); }
+
+    private void load() {
+        UI.loadAsync(this, () -> {
+            try (ResultSet a = db.query(Sql.BOOKS_COUNT);
+                 ResultSet b = db.query(Sql.BOOKS_BORROWED_COUNT);
+                 ResultSet c = db.query(Sql.USERS_COUNT);
+                 ResultSet d = db.query(Sql.FINES_TOTAL)) {
+                a.next(); b.next(); c.next(); d.next();
+                return new Object[]{a.getInt(1), b.getInt(1), c.getInt(1), d.getDouble(1)};
+            }
+        }, r -> {
+            lBooks.setText("Total books: " + r[0]);
+            lBorrowed.setText("Borrowed now: " + r[1]);
+            lUsers.setText("Total users: " + r[2]);
+            lFines.setText("Unsettled fines sum: " + r[3]);
+        });
+    }
+}
+
+// ======================= Analytics =======================
+// لقطة عمودية مضغوطة من transactions مع تصنيف الكتاب، كل عمود مصفوفة أولية
+class CirculationSnapshot {
+    final int size;
+    final int[] category;     // index into categories
+    final int[] book;         // index into titles
+    final int[] borrowMonth;  // year*12 + month-1, -1 if unknown
+    final int[] returnMonth;
+    final int[] borrowDay;    // epoch day, -1 if unknown
+    final int[] dueDay;
+    final int[] returnDay;
+    final double[] fine;
+    final boolean[] settled;  // الغرامة مسددة
+    final String[] categories;
+    final String[] titles;
+
+    private CirculationSnapshot(int size, int[] category, int[] book, int[] borrowMonth, int[] returnMonth,
+                                int[] borrowDay, int[] dueDay, int[] returnDay, double[] fine, boolean[] settled,
+                                String[] categories, String[] titles) {
+        this.size = size;
+        this.category = category; this.book = book;
+        this.borrowMonth = borrowMonth; this.returnMonth = returnMonth;
+        this.borrowDay = borrowDay; this.dueDay = dueDay; this.returnDay = returnDay;
+        this.fine = fine; this.settled = settled;
+        this.categories = categories; this.titles = titles;
+    }
+
+    static CirculationSnapshot load(Database db) throws SQLException {
+        int cap;
+        try (ResultSet rs = db.query(Sql.TRANSACTIONS_COUNT)) { rs.next(); cap = rs.getInt(1); }
+        int[] category = new int[cap], book = new int[cap];
+        int[] borrowDay = new int[cap], dueDay = new int[cap], returnDay = new int[cap];
+        int[] borrowMonth = new int[cap], returnMonth = new int[cap];
+        double[] fine = new double[cap];
+        boolean[] settled = new boolean[cap];
+        Map<String,Integer> catCodes = new HashMap<>();
+        Map<Integer,Integer> bookCodes = new HashMap<>();
+        List<String> cats = new ArrayList<>(), titles = new ArrayList<>();
+
+        int n = 0;
+        try (ResultSet rs = db.query(Sql.ANALYTICS_ROWS)) {
+            while (rs.next() && n < cap) {
+                String c = rs.getString(2).trim();
+                Integer code = catCodes.get(c);
+                if (code == null) { code = cats.size(); catCodes.put(c, code); cats.add(c.isEmpty() ? "(none)" : c); }
+                category[n] = code;
+
+                int bookId = rs.getInt(1);
+                Integer bc = bookCodes.get(bookId);
+                if (bc == null) { bc = titles.size(); bookCodes.put(bookId, bc); titles.add(rs.getString(3)); }
+                book[n] = bc;
+
+                borrowDay[n] = epochDay(rs.getString(4));
+                dueDay[n] = epochDay(rs.getString(5));
+                returnDay[n] = epochDay(rs.getString(6));
+                borrowMonth[n] = month(rs.getString(4));
+                returnMonth[n] = month(rs.getString(6));
+                fine[n] = rs.getDouble(7);
+                settled[n] = rs.getInt(8) != 0;
+                n++;
+            }
+        }
+        return new CirculationSnapshot(n, category, book, borrowMonth, returnMonth, borrowDay, dueDay, returnDay,
+                fine, settled, cats.toArray(new String[0]), titles.toArray(new String[0]));
+    }
+
+    // التواريخ مخزنة كنص yyyy-MM-dd
+    static int epochDay(String s) {
+        if (s == null || s.length() < 10) return -1;
+        try {
+            return (int) LocalDate.of(Integer.parseInt(s.substring(0,4)),
+                    Integer.parseInt(s.substring(5,7)), Integer.parseInt(s.substring(8,10))).toEpochDay();
+        } catch (RuntimeException e) { return -1; }
+    }
+
+    static int month(String s) {
+        if (s == null || s.length() < 7) return -1;
+        try { return Integer.parseInt(s.substring(0,4)) * 12 + Integer.parseInt(s.substring(5,7)) - 1; }
+        catch (NumberFormatException e) { return -1; }
+    }
+}
+
+class CirculationAnalytics {
+    static final int TOP_TITLES = 10;
+
+    static final class Result {
+        String[] categories;
+        int firstMonth, months;
+        long[][] loansByCategoryMonth;  // [category][month - firstMonth]
+        String[] topTitles;
+        int[] topCounts;
+        double avgLoanDays;
+        long[] loansByCategory;
+        long[] overdueByCategory;
+        long totalLoans, totalOverdue;
+        double[] finesAssessed;         // by return month
+        double[] finesCollected;        // settled fines, by return month (no settlement date is stored)
+        long computeMillis;
+
+        String monthLabel(int i) {
+            int m = firstMonth + i;
+            return String.format("%04d-%02d", m / 12, m % 12 + 1);
+        }
+    }
+
+    // مجاميع جزئية لكل خيط، تُدمج في النهاية
+    private static final class Partial {
+        final long[] loans;
+        final int[] bookCounts;
+        final long[] catLoans, catOverdue;
+        final double[] assessed, collected;
+        long loanDaysSum, returned;
+
+        Partial(int cats, int months, int books) {
+            loans = new long[cats * months];
+            bookCounts = new int[books];
+            catLoans = new long[cats];
+            catOverdue = new long[cats];
+            assessed = new double[months];
+            collected = new double[months];
+        }
+
+        void merge(Partial o) {
+            for (int i=0;i<loans.length;i++) loans[i] += o.loans[i];
+            for (int i=0;i<bookCounts.length;i++) bookCounts[i] += o.bookCounts[i];
+            for (int i=0;i<catLoans.length;i++) { catLoans[i] += o.catLoans[i]; catOverdue[i] += o.catOverdue[i]; }
+            for (int i=0;i<assessed.length;i++) { assessed[i] += o.assessed[i]; collected[i] += o.collected[i]; }
+            loanDaysSum += o.loanDaysSum;
+            returned += o.returned;
+        }
+    }
+
+    private final Database db;
+    private String cachedStamp;
+    private Result cached;
+
+    CirculationAnalytics(Database db) { this.db = db; }
+
+    // النتائج تبقى في الذاكرة حتى تتغير القاعدة
+    synchronized Result get() throws SQLException {
+        String stamp = db.changeStamp();
+        if (cached != null && stamp.equals(cachedStamp)) return cached;
+        cached = compute(CirculationSnapshot.load(db), (int) LocalDate.now().toEpochDay());
+        cachedStamp = stamp;
+        return cached;
+    }
+
+    static Result compute(CirculationSnapshot s, int today) {
+        long start = System.nanoTime();
+        int first = Integer.MAX_VALUE, last = Integer.MIN_VALUE;
+        for (int i=0;i<s.size;i++) {
+            int m = s.borrowMonth[i];
+            if (m >= 0) { first = Math.min(first, m); last = Math.max(last, m); }
+            m = s.returnMonth[i];
+            if (m >= 0) { first = Math.min(first, m); last = Math.max(last, m); }
+        }
+        if (first > last) { first = 0; last = -1; }
+        final int firstMonth = first, months = last - first + 1;
+        final int cats = s.categories.length;
+
+        Partial p = IntStream.range(0, s.size).parallel().collect(
+                () -> new Partial(cats, months, s.titles.length),
+                (acc, i) -> {
+                    int c = s.category[i];
+                    if (s.borrowMonth[i] >= 0) acc.loans[c * months + s.borrowMonth[i] - firstMonth]++;
+                    acc.bookCounts[s.book[i]]++;
+                    acc.catLoans[c]++;
+                    int end = s.returnDay[i] >= 0 ? s.returnDay[i] : today;
+                    if (s.dueDay[i] >= 0 && end > s.dueDay[i]) acc.catOverdue[c]++;
+                    if (s.returnDay[i] >= 0 && s.borrowDay[i] >= 0) {
+                        acc.loanDaysSum += s.returnDay[i] - s.borrowDay[i];
+                        acc.returned++;
+                    }
+                    if (s.returnMonth[i] >= 0) {
+                        acc.assessed[s.returnMonth[i] - firstMonth] += s.fine[i];
+                        if (s.settled[i]) acc.collected[s.returnMonth[i] - firstMonth] += s.fine[i];
+                    }
+                },
+                Partial::merge);
+
+        Result r = new Result();
+        r.categories = s.categories;
+        r.firstMonth = firstMonth;
+        r.months = months;
+        r.loansByCategoryMonth = new long[cats][months];
+        for (int c=0;c<cats;c++) System.arraycopy(p.loans, c * months, r.loansByCategoryMonth[c], 0, months);
+        r.loansByCategory = p.catLoans;
+        r.overdueByCategory = p.catOverdue;
+        for (int c=0;c<cats;c++) { r.totalLoans += p.catLoans[c]; r.totalOverdue += p.catOverdue[c]; }
+        r.avgLoanDays = p.returned == 0 ? 0 : (double) p.loanDaysSum / p.returned;
+        r.finesAssessed = p.assessed;
+        r.finesCollected = p.collected;
+
+        int k = Math.min(TOP_TITLES, s.titles.length);
+        int[] top = new int[k];
+        int filled = 0;
+        for (int b=0;b<p.bookCounts.length;b++) {
+            int pos = filled;
+            while (pos > 0 && p.bookCounts[top[pos-1]] < p.bookCounts[b]) pos--;
+            if (pos >= k) continue;
+            System.arraycopy(top, pos, top, pos+1, Math.min(filled, k-1) - pos);
+            top[pos] = b;
+            if (filled < k) filled++;
+        }
+        r.topTitles = new String[filled];
+        r.topCounts = new int[filled];
+        for (int i=0;i<filled;i++) { r.topTitles[i] = s.titles[top[i]]; r.topCounts[i] = p.bookCounts[top[i]]; }
+
+        r.computeMillis = (System.nanoTime() - start) / 1_000_000;
+        return r;
+    }
+}
+
+class AnalyticsReportsForm extends JFrame implements Reloadable {
+    private final Database db;
+    private final JTable tblMonthly = new JTable();
+    private final JTable tblTop = new JTable();
+    private final JTable tblOverdue = new JTable();
+    private final JTable tblFines = new JTable();
+    private final JLabel summary = new JLabel();
+
+    public AnalyticsReportsForm(Database db) {
+        this.db = db;
+        setTitle("Circulation Analytics");
+        setSize(1000, 560);
+        setLocationRelativeTo(null);
+
+        JButton refresh = new JButton("Refresh");
+        refresh.addActionListener(e -> load());
+
+        JPanel top = new JPanel(new BorderLayout(6,6));
+        top.add(summary, BorderLayout.CENTER);
+        top.add(refresh, BorderLayout.EAST);
+
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Loans per category / month", new JScrollPane(tblMonthly));
+        tabs.addTab("Top titles", new JScrollPane(tblTop));
+        tabs.addTab("Overdue rate", new JScrollPane(tblOverdue));
+        tabs.addTab("Fines (assessed / collected)", new JScrollPane(tblFines));
+
+        add(top, BorderLayout.NORTH);
+        add(tabs, BorderLayout.CENTER);
+        load();
+    }
+
+    public void reload() { load(); }
+
+    private void load() {
+        UI.loadAsync(this, () -> db.analytics().get(), r -> {
+            DefaultTableModel monthly = new DefaultTableModel();
+            monthly.addColumn("category");
+            for (int m=0;m<r.months;m++) monthly.addColumn(r.monthLabel(m));
+            for (int c=0;c<r.categories.length;c++) {
+                Object[] row = new Object[r.months + 1];
+                row[0] = r.categories[c];
+                for (int m=0;m<r.months;m++) row[m+1] = r.loansByCategoryMonth[c][m];
+                monthly.addRow(row);
+            }
+            tblMonthly.setModel(monthly);
+
+            DefaultTableModel topModel = new DefaultTableModel(new Object[]{"title","loans"}, 0);
+            for (int i=0;i<r.topTitles.length;i++) topModel.addRow(new Object[]{r.topTitles[i], r.topCounts[i]});
+            tblTop.setModel(topModel);
+
+            DefaultTableModel overdue = new DefaultTableModel(new Object[]{"category","loans","overdue","rate %"}, 0);
+            for (int c=0;c<r.categories.length;c++) {
+                overdue.addRow(new Object[]{r.categories[c], r.loansByCategory[c], r.overdueByCategory[c],
+                        percent(r.overdueByCategory[c], r.loansByCategory[c])});
+            }
+            tblOverdue.setModel(overdue);
+
+            // حسب شهر الإرجاع: المسدد هو الإيراد الفعلي، والباقي لم يُحصّل بعد
+            DefaultTableModel fines = new DefaultTableModel(new Object[]{"return month","assessed","collected","outstanding"}, 0);
+            for (int m=0;m<r.months;m++) {
+                double a = Math.round(r.finesAssessed[m] * 100) / 100.0, c = Math.round(r.finesCollected[m] * 100) / 100.0;
+                fines.addRow(new Object[]{r.monthLabel(m), a, c, Math.round((a - c) * 100) / 100.0});
+            }
+            tblFines.setModel(fines);
+
+            summary.setText(String.format("Loans: %d   Avg loan duration: %.1f days   Overdue rate: %s%%   (computed in %d ms)",
+                    r.totalLoans, r.avgLoanDays, percent(r.totalOverdue, r.totalLoans), r.computeMillis));
+        });
+    }
+
+    private static String percent(long part, long whole) {
+        return whole == 0 ? "0.0" : String.format("%.1f", 100.0 * part / whole);
+    }
+}
+
+// ======================= Branches =======================
+// كل فرع ملف SQLite مستقل؛ اتصال منفصل لكل فرع حتى يمكن البحث فيها بالتوازي
+class BranchRegistry {
+    static final class Branch {
+        final String name;
+        final String path;
+        private Connection conn;
+
+        Branch(String name, String path) { this.name = name; this.path = path; }
+
+        // اتصال قراءة فقط بلا DDL ولا بيانات افتراضية: لا نكتب شيئاً في ملفات الفروع الأخرى
+        synchronized Connection connection() throws SQLException {
+            if (conn == null) {
+                // لا ننشئ ملف فرع غير موجود
+                if (!new File(path).exists()) throw new SQLException("missing " + path);
+                SQLiteConfig config = new SQLiteConfig();
+                config.setReadOnly(true);
+                config.setBusyTimeout(Database.BUSY_TIMEOUT_MS);
+                conn = config.createConnection("jdbc:sqlite:" + path);
+            }
+            return conn;
+        }
+
+        synchronized void close() {
+            try { if (conn != null) conn.close(); } catch (SQLException ignored) {}
+            conn = null;
+        }
+    }
+
+    private final Database home;
+    private final Map<String,Branch> open = new LinkedHashMap<>();
+
+    BranchRegistry(Database home) { this.home = home; }
+
+    // الصيغة: Main=library.db;North=north.db
+    static Map<String,String> parse(String spec) {
+        Map<String,String> out = new LinkedHashMap<>();
+        for (String part : spec.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq <= 0) continue;
+            String name = part.substring(0, eq).trim(), path = part.substring(eq + 1).trim();
+            if (!name.isEmpty() && !path.isEmpty()) out.put(name, path);
+        }
+        return out;
+    }
+
+    synchronized List<Branch> branches() {
+        Map<String,String> wanted = parse(home.getSetting("branches", "Main=" + home.getPath()));
+        if (wanted.isEmpty()) wanted.put("Main", home.getPath());
+
+        for (Iterator<Map.Entry<String,Branch>> it = open.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String,Branch> e = it.next();
+            if (!e.getValue().path.equals(wanted.get(e.getKey()))) {
+                e.getValue().close();
+                it.remove();
+            }
+        }
+        // الاتصال نفسه يُفتح داخل مهمة الفرع حتى يخضع لمهلة البحث
+        List<Branch> out = new ArrayList<>();
+        for (Map.Entry<String,String> e : wanted.entrySet())
+            out.add(open.computeIfAbsent(e.getKey(), k -> new Branch(k, e.getValue())));
+        return out;
+    }
+
+    long timeoutMillis() {
+        try { return Long.parseLong(home.getSetting("branch_timeout_ms", "2000")); }
+        catch (NumberFormatException e) { return 2000; }
+    }
+}
+
+class FederatedSearch {
+    static final int PER_BRANCH_LIMIT = 200;
+
+    static final class Hit {
+        final String title, author, category;
+        int score;
+        final Map<String,int[]> copies = new LinkedHashMap<>(); // branch -> {available, total}
+
+        Hit(String title, String author, String category) { this.title = title; this.author = author; this.category = category; }
+
+        String availability() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String,int[]> e : copies.entrySet()) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(e.getKey()).append(": ").append(e.getValue()[0]).append('/').append(e.getValue()[1]);
+            }
+            return sb.toString();
+        }
+
+        int available() {
+            int n = 0;
+            for (int[] c : copies.values()) n += c[0];
+            return n;
+        }
+    }
+
+    static final class Outcome {
+        final List<Hit> hits = new ArrayList<>();
+        final List<String> timedOut = new ArrayList<>();
+        final List<String> failed = new ArrayList<>();
+        int searched;
+        long millis;
+    }
+
+    private static final class BranchTask implements Callable<List<Object[]>> {
+        final BranchRegistry.Branch branch;
+        final String needle, like;
+        final int timeoutSeconds;
+        volatile PreparedStatement ps;
+
+        BranchTask(BranchRegistry.Branch branch, String needle, String like, int timeoutSeconds) {
+            this.branch = branch; this.needle = needle; this.like = like; this.timeoutSeconds = timeoutSeconds;
+        }
+
+        public List<Object[]> call() throws SQLException {
+            List<Object[]> rows = new ArrayList<>();
+            synchronized (branch) {
+                ps = branch.connection().prepareStatement(Sql.BRANCH_SEARCH);
+                try {
+                    ps.setQueryTimeout(timeoutSeconds);
+                    ps.setString(1, like); ps.setString(2, like); ps.setString(3, like);
+                    ps.setString(4, needle); ps.setString(5, needle + "%"); ps.setString(6, like); ps.setString(7, like);
+                    ps.setInt(8, PER_BRANCH_LIMIT);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) rows.add(new Object[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)});
+                    }
+                } finally { ps.close(); }
+            }
+            return rows;
+        }
+
+        void cancel() {
+            PreparedStatement p = ps;
+            try { if (p != null) p.cancel(); } catch (SQLException ignored) {}
+        }
+    }
+
+    private final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "branch-search");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // يُستدعى خارج خيط الواجهة؛ قائمة الفروع والمهلة تُقرأ من القاعدة الرئيسية قبل ذلك
+    Outcome search(List<BranchRegistry.Branch> branches, long timeout, String q, int limit) {
+        long start = System.nanoTime();
+        Outcome out = new Outcome();
+        String needle = q.trim().toLowerCase();
+        String like = "%" + q.trim() + "%";
+        int timeoutSeconds = (int) Math.max(1, (timeout + 999) / 1000);
+
+        List<BranchTask> tasks = new ArrayList<>();
+        List<Future<List<Object[]>>> futures = new ArrayList<>();
+        for (BranchRegistry.Branch b : branches) {
+            BranchTask t = new BranchTask(b, needle, like, timeoutSeconds);
+            tasks.add(t);
+            futures.add(pool.submit(t));
+        }
+
+        // كل الفروع تعمل بالتوازي، فالمهلة تُحسب من لحظة البدء لكل فرع
+        long deadline = start + timeout * 1_000_000;
+        Map<String,Hit> merged = new LinkedHashMap<>();
+        for (int i=0;i<futures.size();i++) {
+            BranchTask t = tasks.get(i);
+            try {
+                List<Object[]> rows = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                out.searched++;
+                for (Object[] r : rows) {
+                    String title = (String) r[0], author = (String) r[1], category = (String) r[2];
+                    String key = title.toLowerCase() + "|" + author.toLowerCase();
+                    Hit h = merged.get(key);
+                    if (h == null) {
+                        h = new Hit(title, author, category);
+                        h.score = score(needle, title, author, category);
+                        merged.put(key, h);
+                    }
+                    int[] c = h.copies.computeIfAbsent(t.branch.name, k -> new int[2]);
+                    if ("available".equalsIgnoreCase((String) r[3])) c[0]++;
+                    c[1]++;
                 }
+            } catch (TimeoutException e) {
+                t.cancel();
+                futures.get(i).cancel(true);
+                out.timedOut.add(t.branch.name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                out.failed.add(t.branch.name + " (" + e.getCause().getMessage() + ")");
             }
-            int days = Integer.parseInt(db.getSetting("borrow_days","14"));
-            LocalDate b = LocalDate.now();
-            LocalDate d = b.plusDays(days);
-            db.update("INSERT INTO transactions(user_id,book_id,borrow_date,due_date) VALUES(?,?,?,?)", userId, bookId, b.toString(), d.toString());
-            db.update("UPDATE books SET status='borrowed' WHERE id=?", bookId);
-            loadData();
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
-    }
+        }
 
-    private void doReturnSelected() {
-        int r = tblActive.getSelectedRow();
-        if (r<0) { JOptionPane.showMessageDialog(this,"Select a transaction."); return; }
-        int tid = Integer.parseInt(String.valueOf(tblActive.getValueAt(r,0)));
-        try (ResultSet rs = db.query("SELECT book_id,due_date FROM transactions WHERE id=?", tid)) {
-            if (!rs.next()) { JOptionPane.showMessageDialog(this,"Not found."); return; }
-            int bookId = rs.getInt(1);
-            LocalDate due = LocalDate.parse(rs.getString(2));
-            LocalDate ret = LocalDate.now();
-            double finePerDay = Double.parseDouble(db.getSetting("fine_per_day","1"));
-            long late = Math.max(0, ChronoUnit.DAYS.between(due, ret));
-            double fine = late * finePerDay;
+        out.hits.addAll(merged.values());
+        out.hits.sort((a, b) -> a.score != b.score ? Integer.compare(b.score, a.score)
+                : a.available() != b.available() ? Integer.compare(b.available(), a.available())
+                : a.title.compareToIgnoreCase(b.title));
+        if (out.hits.size() > limit) out.hits.subList(limit, out.hits.size()).clear();
+        out.millis = (System.nanoTime() - start) / 1_000_000;
+        return out;
+    }
 
-            db.update("UPDATE transactions SET return_date=?, fine=? WHERE id=?", ret.toString(), fine, tid);
-            db.update("UPDATE books SET status='available' WHERE id=?", bookId);
-            loadData();
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    static int score(String needle, String title, String author, String category) {
+        String t = title.toLowerCase();
+        if (needle.isEmpty()) return 0;
+        if (t.equals(needle)) return 100;
+        if (t.startsWith(needle)) return 80;
+        if (t.contains(needle)) return 60;
+        if (author.toLowerCase().contains(needle)) return 40;
+        if (category.toLowerCase().contains(needle)) return 20;
+        return 0;
     }
 }
 
-class ManageReservationsForm extends JFrame {
-    private final Database db;
+class FederatedSearchForm extends JFrame {
+    private final BranchRegistry registry;
+    private final FederatedSearch search = new FederatedSearch();
     private final JTable table = new JTable();
+    private final JTextField q = new JTextField();
+    private final JButton go = new JButton("Search");
+    private final JLabel status = new JLabel(" ");
 
-    public ManageReservationsForm(Database db) {
-        this.db = db;
-        setTitle("Manage Reservations");
-        setSize(900, 500);
+    public FederatedSearchForm(Database db) {
+        this.registry = db.branches();
+        setTitle("Search All Branches");
+        setSize(900, 450);
         setLocationRelativeTo(null);
 
-        JButton refresh = new JButton("Refresh");
-        refresh.addActionListener(e -> load());
-        JButton setCompleted = new JButton("Mark as completed");
-        setCompleted.addActionListener(e -> setStatus("completed"));
-        JButton setCanceled = new JButton("Cancel");
-        setCanceled.addActionListener(e -> setStatus("canceled"));
+        go.addActionListener(e -> search());
+        q.addActionListener(e -> search());
 
-        JPanel top = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-        top.add(refresh); top.add(setCompleted); top.add(setCanceled);
+        JPanel top = new JPanel(new BorderLayout(6,6));
+        top.add(q, BorderLayout.CENTER);
+        top.add(go, BorderLayout.EAST);
 
         add(top, BorderLayout.NORTH);
         add(new JScrollPane(table), BorderLayout.CENTER);
-        load();
+        add(status, BorderLayout.SOUTH);
     }
 
-    private void load() {
-        try (ResultSet rs = db.query(
-                "SELECT r.id,u.name as user,b.title as book,r.reservation_date,r.status " +
-                "FROM reservations r JOIN users u ON r.user_id=u.id JOIN books b ON r.book_id=b.id " +
-                "ORDER BY r.id DESC")) {
-            UI.loadTable(table, rs);
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    private void search() {
+        if (!go.isEnabled()) return;
+        List<BranchRegistry.Branch> branches = registry.branches();
+        long timeout = registry.timeoutMillis();
+        String text = q.getText();
+        go.setEnabled(false);
+        status.setText("Searching " + branches.size() + " branch(es)...");
+        new SwingWorker<FederatedSearch.Outcome,Void>() {
+            protected FederatedSearch.Outcome doInBackground() { return search.search(branches, timeout, text, 200); }
+
+            protected void done() {
+                go.setEnabled(true);
+                try { render(get()); }
+                catch (InterruptedException | ExecutionException e) { status.setText("Search failed: " + e.getMessage()); }
+            }
+        }.execute();
     }
 
-    private void setStatus(String status) {
-        int r = table.getSelectedRow();
-        if (r<0) { JOptionPane.showMessageDialog(this,"Select a row."); return; }
-        int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
-        try {
-            db.update("UPDATE reservations SET status=? WHERE id=?", status, id);
-            load();
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    private void render(FederatedSearch.Outcome out) {
+        DefaultTableModel model = new DefaultTableModel(new Object[]{"title","author","category","available / copies"}, 0);
+        for (FederatedSearch.Hit h : out.hits) model.addRow(new Object[]{h.title, h.author, h.category, h.availability()});
+        table.setModel(model);
+
+        StringBuilder sb = new StringBuilder(out.hits.size() + " results from " + out.searched + " branch(es) in " + out.millis + " ms");
+        if (!out.timedOut.isEmpty()) sb.append("   Timed out: ").append(String.join(", ", out.timedOut));
+        if (!out.failed.isEmpty()) sb.append("   Unavailable: ").append(String.join(", ", out.failed));
+        status.setText(sb.toString());
     }
 }
 
-class ManageFinesForm extends JFrame {
-    private final Database db;
-    private final JTable table = new JTable();
+// ======================= Notifications =======================
+// تنبيهات قرب الاستحقاق والتأخير تُكتب في outbox (بديل محلي عن البريد/SMS)
+class NotificationScheduler {
+    static final class Run {
+        int scanned, notices, users;
+        long millis;
+    }
 
-    public ManageFinesForm(Database db) {
-        this.db = db;
-        setTitle("Manage Fines");
-        setSize(900, 500);
-        setLocationRelativeTo(null);
+    private static final class Loan {
+        final int transactionId;
+        final String title, dueDate;
 
-        JButton refresh = new JButton("Refresh");
-        refresh.addActionListener(e -> load());
-        JButton settle = new JButton("Mark Fine as Settled");
-        settle.addActionListener(e -> settleFine());
+        Loan(int transactionId, String title, String dueDate) {
+            this.transactionId = transactionId; this.title = title; this.dueDate = dueDate;
+        }
+    }
 
-        JPanel top = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-        top.add(refresh); top.add(settle);
+    private final Database db;
 
-        add(top, BorderLayout.NORTH);
-        add(new JScrollPane(table), BorderLayout.CENTER);
-        load();
+    NotificationScheduler(Database db) { this.db = db; }
+
+    // خيط خلفي باتصال مستقل؛ يعمل عند البدء ثم كل notify_interval_min دقيقة
+    static ScheduledExecutorService start(Database home) {
+        String dbPath = home.getPath();
+        long intervalMinutes;
+        try { intervalMinutes = Long.parseLong(home.getSetting("notify_interval_min", "60")); }
+        catch (NumberFormatException e) { intervalMinutes = 60; }
+        ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "notifications");
+            t.setDaemon(true);
+            return t;
+        });
+        NotificationScheduler[] holder = new NotificationScheduler[1];
+        exec.scheduleWithFixedDelay(() -> {
+            try {
+                if (holder[0] == null) holder[0] = new NotificationScheduler(new Database(dbPath));
+                Run r = holder[0].runOnce();
+                System.out.println("Notifications: " + r.notices + " notices for " + r.users + " users, "
+                        + r.scanned + " loans scanned in " + r.millis + " ms");
+            } catch (Exception e) { e.printStackTrace(); }
+        }, 5, Math.max(1, intervalMinutes) * 60, TimeUnit.SECONDS);
+        return exec;
     }
 
-    private void load() {
-        try (ResultSet rs = db.query(
-                "SELECT t.id, u.name as user, b.title as book, t.due_date, t.return_date, t.fine, t.fine_settled " +
-                "FROM transactions t JOIN users u ON t.user_id=u.id JOIN books b ON t.book_id=b.id " +
-                "WHERE t.return_date IS NOT NULL AND t.fine > 0 ORDER BY t.id DESC")) {
-            UI.loadTable(table, rs);
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    synchronized Run runOnce() throws SQLException {
+        long start = System.nanoTime();
+        String startedAt = java.time.LocalDateTime.now().withNano(0).toString();
+        LocalDate today = LocalDate.now();
+        int soonDays = Integer.parseInt(db.getSetting("due_soon_days", "2"));
+        Run[] result = new Run[1];
+
+        // الاختيار والكتابة في معاملة IMMEDIATE واحدة: المجدول و"Run now" ومكتب آخر لا يرسلون نفس التنبيه مرتين.
+        // المحاولة تُعاد كاملة إذا كانت القاعدة مشغولة، فكل محاولة تبدأ بعدادات جديدة
+        db.inImmediateTransaction(() -> {
+            Run run = new Run();
+
+            // مسح مدى على فهرس idx_transactions_open_due بدلاً من المرور على كل الجدول
+            Map<Integer,List<Loan>> dueSoon = collect(run, "due_soon",
+                    Sql.NOTICES_DUE_SOON, today.toString(), today.plusDays(soonDays).toString());
+            Map<Integer,List<Loan>> overdue = collect(run, "overdue",
+                    Sql.NOTICES_OVERDUE, today.toString());
+
+            Set<Integer> users = new HashSet<>();
+            users.addAll(dueSoon.keySet());
+            users.addAll(overdue.keySet());
+            run.users = users.size();
+
+            try (PreparedStatement out = db.prepare(Sql.OUTBOX_INSERT);
+                 PreparedStatement sent = db.prepare(Sql.NOTICE_SENT_INSERT)) {
+                run.notices += enqueue(out, sent, "due_soon", "Books due soon", dueSoon, startedAt);
+                run.notices += enqueue(out, sent, "overdue", "Overdue books", overdue, startedAt);
+                sent.executeBatch();
+            }
+            run.millis = (System.nanoTime() - start) / 1_000_000;
+            db.update(Sql.NOTIFICATION_RUN_INSERT,
+                    startedAt, run.millis, run.scanned, run.notices, run.users);
+            result[0] = run;
+        });
+        return result[0];
     }
 
-    private void settleFine() {
-        int r = table.getSelectedRow();
-        if (r<0) { JOptionPane.showMessageDialog(this, "Select a row."); return; }
-        int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
-        try {
-            db.update("UPDATE transactions SET fine_settled=1 WHERE id=?", id);
-            load();
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+    private Map<Integer,List<Loan>> collect(Run run, String kind, String sql, Object... params) throws SQLException {
+        Object[] all = Arrays.copyOf(params, params.length + 1);
+        all[params.length] = kind;
+        Map<Integer,List<Loan>> byUser = new LinkedHashMap<>();
+        try (ResultSet rs = db.query(sql, all)) {
+            while (rs.next()) {
+                run.scanned++;
+                byUser.computeIfAbsent(rs.getInt(2), k -> new ArrayList<>())
+                        .add(new Loan(rs.getInt(1), rs.getString(3), rs.getString(4)));
+            }
+        }
+        return byUser;
+    }
+
+    // رسالة واحدة لكل مستخدم تجمع كل كتبه
+    private int enqueue(PreparedStatement out, PreparedStatement sent, String kind, String subject,
+                        Map<Integer,List<Loan>> byUser, String now) throws SQLException {
+        for (Map.Entry<Integer,List<Loan>> e : byUser.entrySet()) {
+            StringBuilder body = new StringBuilder();
+            for (Loan l : e.getValue()) body.append(l.title).append(" (due ").append(l.dueDate).append(")\n");
+            out.setInt(1, e.getKey());
+            out.setString(2, kind);
+            out.setString(3, subject);
+            out.setString(4, body.toString().trim());
+            out.setString(5, now);
+            out.executeUpdate();
+            long outboxId;
+            try (ResultSet rs = db.query(Sql.LAST_INSERT_ID)) { rs.next(); outboxId = rs.getLong(1); }
+            for (Loan l : e.getValue()) {
+                sent.setInt(1, l.transactionId);
+                sent.setString(2, kind);
+                sent.setLong(3, outboxId);
+                sent.addBatch();
+            }
+        }
+        return byUser.size();
     }
 }
 
-class ReportsForm extends JFrame {
+class NotificationsForm extends JFrame implements Reloadable {
     private final Database db;
-    private final JLabel lBooks = new JLabel();
-    private final JLabel lBorrowed = new JLabel();
-    private final JLabel lUsers = new JLabel();
-    private final JLabel lFines = new JLabel();
+    private final JTable tblOutbox = new JTable();
+    private final JTable tblRuns = new JTable();
+    private final JButton runNow = new JButton("Run now");
 
-    public ReportsForm(Database db) {
+    public NotificationsForm(Database db) {
         this.db = db;
-        setTitle("Reports");
-        setSize(420, 260);
+        setTitle("Notifications Outbox");
+        setSize(1000, 560);
         setLocationRelativeTo(null);
-        setLayout(new GridLayout(0,1,6,6));
-
-        add(lBooks);
-        add(lBorrowed);
-        add(lUsers);
-        add(lFines);
 
         JButton refresh = new JButton("Refresh");
         refresh.addActionListener(e -> load());
-        add(refresh);
+        runNow.addActionListener(e -> runNow());
+
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        top.add(refresh); top.add(runNow);
+
+        JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+                new JScrollPane(tblOutbox), new JScrollPane(tblRuns));
+        split.setResizeWeight(0.7);
 
+        add(top, BorderLayout.NORTH);
+        add(split, BorderLayout.CENTER);
         load();
     }
 
+    public void reload() { load(); }
+
     private void load() {
-        try (ResultSet a = db.query("SELECT COUNT(*) FROM books");
-             ResultSet b = db.query("SELECT COUNT(*) FROM books WHERE status='borrowed'");
-             ResultSet c = db.query("SELECT COUNT(*) FROM users");
-             ResultSet d = db.query("SELECT IFNULL(SUM(fine),0) FROM transactions WHERE fine>0 AND fine_settled=0")) {
-            a.next(); b.next(); c.next(); d.next();
-            lBooks.setText("Total books: " + a.getInt(1));
-            lBorrowed.setText("Borrowed now: " + b.getInt(1));
-            lUsers.setText("Total users: " + c.getInt(1));
-            lFines.setText("Unsettled fines sum: " + d.getDouble(1));
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+        UI.loadAsync(this, () -> new ColumnarTableModel[]{UI.fetch(db, Sql.OUTBOX_LIST), UI.fetch(db, Sql.NOTIFICATION_RUNS)}, m -> {
+            UI.showTable(tblOutbox, m[0]);
+            UI.showTable(tblRuns, m[1]);
+        });
+    }
+
+    // runOnce قد ينتظر قفل الكتابة ويعيد المحاولة لثوانٍ، فلا يعمل على خيط الواجهة
+    private void runNow() {
+        runNow.setEnabled(false);
+        new SwingWorker<NotificationScheduler.Run,Void>() {
+            protected NotificationScheduler.Run doInBackground() throws SQLException { return new NotificationScheduler(db).runOnce(); }
+
+            protected void done() {
+                runNow.setEnabled(true);
+                try {
+                    NotificationScheduler.Run r = get();
+                    load();
+                    JOptionPane.showMessageDialog(NotificationsForm.this, r.notices + " notices queued for " + r.users + " users (" + r.millis + " ms).");
+                } catch (ExecutionException e) { JOptionPane.showMessageDialog(NotificationsForm.this, e.getCause().getMessage());
+                } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }.execute();
     }
 }
 
 // ======================= Admin Forms =======================
-class ManageUsersForm extends JFrame {
+class ManageUsersForm extends JFrame implements Reloadable {
     private final Database db;
     private final JTable table = new JTable();
     private final JTextField tName = new JTextField(), tEmail = new JTextField(),
@@ -684,15 +2892,15 @@ class ManageUsersForm extends JFrame {
         refresh();
     }
 
+    public void reload() { refresh(); }
+
     private void refresh() {
-        try (ResultSet rs = db.query("SELECT id,name,role,email,password FROM users ORDER BY id DESC")) {
-            UI.loadTable(table, rs);
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+        UI.loadAsync(this, () -> UI.fetch(db, Sql.USERS_LIST), m -> UI.showTable(table, m));
     }
 
     private void addUser() {
         try {
-            db.update("INSERT INTO users(name,role,email,password) VALUES(?,?,?,?)",
+            db.update(Sql.USER_INSERT,
                     tName.getText().trim(), tRole.getText().trim(), tEmail.getText().trim(), tPass.getText().trim());
             refresh(); clear();
         } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
@@ -703,9 +2911,11 @@ class ManageUsersForm extends JFrame {
         if (r<0) { JOptionPane.showMessageDialog(this, "Select a row."); return; }
         try {
             int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
-            db.update("UPDATE users SET name=?, role=?, email=?, password=? WHERE id=?",
-                    tName.getText().trim(), tRole.getText().trim(), tEmail.getText().trim(), tPass.getText().trim(), id);
+            db.compareAndSet("User " + id + " was changed or deleted at another desk; your edit was not saved.", Sql.USER_UPDATE,
+                    tName.getText().trim(), tRole.getText().trim(), tEmail.getText().trim(), tPass.getText().trim(), id,
+                    UI.rowVersion(table, r));
             refresh();
+        } catch (ConflictException e) { UI.conflict(this, e, this::refresh);
         } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
     }
 
@@ -714,15 +2924,17 @@ class ManageUsersForm extends JFrame {
         if (r<0) { JOptionPane.showMessageDialog(this, "Select a row."); return; }
         try {
             int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
-            db.update("DELETE FROM users WHERE id=?", id);
+            db.compareAndSet("User " + id + " was changed or deleted at another desk; it was not deleted.", Sql.USER_DELETE,
+                    id, UI.rowVersion(table, r));
             refresh(); clear();
+        } catch (ConflictException e) { UI.conflict(this, e, this::refresh);
         } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
     }
 
     private void clear() { tName.setText(""); tEmail.setText(""); tPass.setText(""); tRole.setText("Student"); }
 }
 
-class ManageRolesForm extends JFrame {
+class ManageRolesForm extends JFrame implements Reloadable {
     private final Database db;
     private final JTable table = new JTable();
 
@@ -750,10 +2962,10 @@ class ManageRolesForm extends JFrame {
         load();
     }
 
+    public void reload() { load(); }
+
     private void load() {
-        try (ResultSet rs = db.query("SELECT id,name,role,email FROM users ORDER BY id DESC")) {
-            UI.loadTable(table, rs);
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+        UI.loadAsync(this, () -> UI.fetch(db, Sql.USERS_ROLES), m -> UI.showTable(table, m));
     }
 
     private void setRole(String role) {
@@ -761,47 +2973,67 @@ class ManageRolesForm extends JFrame {
         if (r<0) { JOptionPane.showMessageDialog(this, "Select a user."); return; }
         int id = Integer.parseInt(String.valueOf(table.getValueAt(r,0)));
         try {
-            db.update("UPDATE users SET role=? WHERE id=?", role, id);
+            db.compareAndSet("User " + id + " was changed at another desk.", Sql.USER_SET_ROLE, role, id, UI.rowVersion(table, r));
             load();
+        } catch (ConflictException e) { UI.conflict(this, e, this::load);
         } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
     }
 }
 
-class SettingsForm extends JFrame {
+class SettingsForm extends JFrame implements Reloadable {
     private final Database db;
     private final JTextField tBorrowDays = new JTextField();
     private final JTextField tMaxBorrow = new JTextField();
     private final JTextField tFinePerDay = new JTextField();
+    private final JTextField tBranches = new JTextField();
+    private final JTextField tBranchTimeout = new JTextField();
 
     public SettingsForm(Database db) {
         this.db = db;
         setTitle("System Settings");
-        setSize(420, 220);
+        setSize(520, 300);
         setLocationRelativeTo(null);
         setLayout(new GridLayout(0,1,6,6));
 
-        tBorrowDays.setText(db.getSetting("borrow_days","14"));
-        tMaxBorrow.setText(db.getSetting("max_borrow","5"));
-        tFinePerDay.setText(db.getSetting("fine_per_day","1"));
+        load();
 
         add(UI.labeledField("Borrow Days:", tBorrowDays));
         add(UI.labeledField("Max Borrow:", tMaxBorrow));
         add(UI.labeledField("Fine per Day:", tFinePerDay));
+        add(UI.labeledField("Branches (name=file;...):", tBranches));
+        add(UI.labeledField("Branch timeout (ms):", tBranchTimeout));
 
         JButton save = new JButton("Save");
         save.addActionListener(e -> {
             db.setSetting("borrow_days", tBorrowDays.getText().trim());
             db.setSetting("max_borrow", tMaxBorrow.getText().trim());
             db.setSetting("fine_per_day", tFinePerDay.getText().trim());
+            db.setSetting("branches", tBranches.getText().trim());
+            db.setSetting("branch_timeout_ms", tBranchTimeout.getText().trim());
             JOptionPane.showMessageDialog(this, "Saved.");
         });
         add(save);
     }
+
+    public void reload() { load(); }
+
+    private void load() {
+        UI.loadAsync(this, () -> new String[]{db.getSetting("borrow_days","14"), db.getSetting("max_borrow","5"),
+                db.getSetting("fine_per_day","1"), db.getSetting("branches","Main=" + db.getPath()),
+                db.getSetting("branch_timeout_ms","2000")}, v -> {
+            tBorrowDays.setText(v[0]);
+            tMaxBorrow.setText(v[1]);
+            tFinePerDay.setText(v[2]);
+            tBranches.setText(v[3]);
+            tBranchTimeout.setText(v[4]);
+        });
+    }
 }
 
-class SystemReportsForm extends JFrame {
+class SystemReportsForm extends JFrame implements Reloadable {
     private final Database db;
     private final JTable table = new JTable();
+    private final JTextField tFilter = new JTextField();
 
     public SystemReportsForm(Database db) {
         this.db = db;
@@ -811,67 +3043,189 @@ class SystemReportsForm extends JFrame {
 
         JButton refresh = new JButton("Refresh");
         refresh.addActionListener(e -> load());
+        tFilter.addActionListener(e -> applyFilter());
+
+        JPanel top = new JPanel(new BorderLayout(6,6));
+        top.add(UI.labeledField("Filter:", tFilter), BorderLayout.CENTER);
+        top.add(refresh, BorderLayout.EAST);
 
-        add(refresh, BorderLayout.NORTH);
+        add(top, BorderLayout.NORTH);
         add(new JScrollPane(table), BorderLayout.CENTER);
         load();
     }
 
+    private void applyFilter() {
+        if (table.getModel() instanceof ColumnarTableModel)
+            ((ColumnarTableModel) table.getModel()).filter(tFilter.getText());
+    }
+
+    public void reload() { load(); }
+
     private void load() {
-        try (ResultSet rs = db.query(
-                "SELECT t.id, u.name as user, b.title as book, t.borrow_date, t.due_date, t.return_date, t.fine, t.fine_settled " +
-                        "FROM transactions t " +
-                        "JOIN users u ON t.user_id=u.id " +
-                        "JOIN books b ON t.book_id=b.id " +
-                        "ORDER BY t.id DESC")) {
-            UI.loadTable(table, rs);
-        } catch (SQLException e) { JOptionPane.showMessageDialog(this, e.getMessage()); }
+        UI.loadAsync(this, () -> UI.fetch(db, Sql.TRANSACTIONS_REPORT), m -> {
+            UI.showTable(table, m);
+            applyFilter();
+        });
+    }
+}
+
+// ======================= Windows =======================
+// نموذج يعيد تحميل بياناته عند إعادة فتحه
+interface Reloadable { void reload(); }
+
+// كل نموذج يُبنى مرة واحدة عند أول فتح ثم يُعاد استخدامه، ويُعاد تحميله فقط إذا تغيرت القاعدة
+final class Windows {
+    static final int PRELOAD = 3, PRELOAD_DELAY_MS = 500, PRELOAD_GAP_MS = 250;
+
+    interface Factory { JFrame create(); }
+
+    static final class Entry {
+        final String name;
+        final Factory factory;
+        JFrame frame;
+        String stamp;
+        int opens, preloads;
+        double totalMs, maxMs;
+        Entry(String name, Factory factory) { this.name = name; this.factory = factory; }
+    }
+
+    private static final Map<Class<?>,Entry> entries = new LinkedHashMap<>();
+
+    static JButton button(Database db, String label, Class<? extends JFrame> form, Factory factory) {
+        entries.putIfAbsent(form, new Entry(form.getSimpleName(), factory));
+        JButton b = new JButton(label);
+        b.addActionListener(e -> open(db, form));
+        return b;
+    }
+
+    static void open(Database db, Class<? extends JFrame> form) {
+        long start = System.nanoTime();
+        Entry e = entries.get(form);
+        if (e.frame == null) {
+            create(db, e);
+        } else if (e.frame instanceof Reloadable) {
+            String now = stamp(db);
+            if (!now.equals(e.stamp)) {
+                ((Reloadable) e.frame).reload();
+                e.stamp = now;
+            }
+        }
+        e.frame.setVisible(true);
+        e.frame.setExtendedState(e.frame.getExtendedState() & ~Frame.ICONIFIED);
+        e.frame.toFront();
+        // بعد أول رسم للنافذة
+        SwingUtilities.invokeLater(() -> {
+            double ms = (System.nanoTime() - start) / 1_000_000.0;
+            e.opens++;
+            e.totalMs += ms;
+            e.maxMs = Math.max(e.maxMs, ms);
+        });
+    }
+
+    private static void create(Database db, Entry e) {
+        e.frame = e.factory.create();
+        e.frame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        e.stamp = stamp(db);
+    }
+
+    private static String stamp(Database db) {
+        try { return db.changeStamp(); } catch (SQLException ex) { return ""; }
+    }
+
+    // بعد الدخول: بناء النماذج الأكثر استخداماً واحداً تلو الآخر على خيط الواجهة دون إظهارها.
+    // النوافذ تُبنى على خيط الواجهة فقط؛ استعلامات بياناتها تعمل في الخلفية عبر UI.loadAsync
+    static void attach(JFrame dashboard, Database db) {
+        List<Entry> queue = new ArrayList<>();
+        javax.swing.Timer preload = new javax.swing.Timer(PRELOAD_GAP_MS, null);
+        preload.setInitialDelay(PRELOAD_DELAY_MS);
+        preload.addActionListener(ev -> {
+            if (queue.isEmpty() || !dashboard.isDisplayable()) { preload.stop(); return; }
+            Entry e = queue.remove(0);
+            if (e.frame == null) {
+                create(db, e);
+                e.preloads++;
+            }
+        });
+        UI.loadAsync(dashboard, () -> {
+            List<String> top = new ArrayList<>();
+            try (ResultSet rs = db.query(Sql.FORM_OPENS_TOP)) {
+                while (rs.next()) top.add(rs.getString(1));
+            }
+            return top;
+        }, top -> {
+            for (String name : top)
+                for (Entry e : entries.values()) if (queue.size() < PRELOAD && e.name.equals(name)) queue.add(e);
+            preload.start();
+        });
+
+        dashboard.addWindowListener(new WindowAdapter() {
+            public void windowClosed(WindowEvent ev) {
+                preload.stop();
+                closeAll(db);
+            }
+        });
+    }
+
+    // إغلاق لوحة التحكم يغلق كل النماذج المخبأة ويحفظ أزمنة الفتح
+    static void closeAll(Database db) {
+        try {
+            db.inTransaction(() -> {
+                for (Entry e : entries.values()) {
+                    if (e.opens == 0 && e.preloads == 0) continue;
+                    db.update(Sql.FORM_OPENS_MERGE, e.name, e.opens, e.preloads, e.totalMs, e.maxMs);
+                    System.out.printf(Locale.ROOT, "%s: %d opens, avg %.1f ms, max %.1f ms%n",
+                            e.name, e.opens, e.opens == 0 ? 0 : e.totalMs / e.opens, e.maxMs);
+                }
+            });
+        } catch (SQLException ex) { ex.printStackTrace(); }
+        for (Entry e : entries.values()) if (e.frame != null) e.frame.dispose();
+        entries.clear();
     }
+
+    private Windows() {}
 }
 
 // ======================= Dashboards =======================
 class StudentDashboard extends JFrame {
     public StudentDashboard(Database db) {
         setTitle("Student Dashboard");
-        setSize(420, 320);
+        setSize(420, 420);
         setLocationRelativeTo(null);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
         JPanel p = new JPanel(new GridLayout(0,1,8,8));
-        JButton b1 = new JButton("Search Books");
-        b1.addActionListener(e -> new SearchBooksForm(db).setVisible(true));
-        JButton b2 = new JButton("Borrow Book");
-        b2.addActionListener(e -> new BorrowBookForm(db).setVisible(true));
-        JButton b3 = new JButton("Return Book");
-        b3.addActionListener(e -> new ReturnBookForm(db).setVisible(true));
-        JButton b4 = new JButton("Reserve Book");
-        b4.addActionListener(e -> new ReserveBookForm(db).setVisible(true));
-        p.add(b1); p.add(b2); p.add(b3); p.add(b4);
+        JButton b1 = Windows.button(db, "Search Books", SearchBooksForm.class, () -> new SearchBooksForm(db));
+        JButton b2 = Windows.button(db, "Borrow Book", BorrowBookForm.class, () -> new BorrowBookForm(db));
+        JButton b3 = Windows.button(db, "Return Book", ReturnBookForm.class, () -> new ReturnBookForm(db));
+        JButton b4 = Windows.button(db, "Reserve Book", ReserveBookForm.class, () -> new ReserveBookForm(db));
+        JButton b5 = Windows.button(db, "Search All Branches", FederatedSearchForm.class, () -> new FederatedSearchForm(db));
+        JButton b6 = Windows.button(db, "My Account", MyAccountForm.class, () -> new MyAccountForm(db));
+        p.add(b1); p.add(b2); p.add(b3); p.add(b4); p.add(b5); p.add(b6);
         add(p);
+        Windows.attach(this, db);
     }
 }
 
 class LibrarianDashboard extends JFrame {
     public LibrarianDashboard(Database db) {
         setTitle("Librarian Dashboard");
-        setSize(420, 420);
+        setSize(420, 560);
         setLocationRelativeTo(null);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
         JPanel p = new JPanel(new GridLayout(0,1,8,8));
-        JButton b1 = new JButton("Manage Books");
-        b1.addActionListener(e -> new ManageBooksForm(db).setVisible(true));
-        JButton b2 = new JButton("Borrow/Return");
-        b2.addActionListener(e -> new BorrowReturnManageForm(db).setVisible(true));
-        JButton b3 = new JButton("Manage Reservations");
-        b3.addActionListener(e -> new ManageReservationsForm(db).setVisible(true));
-        JButton b4 = new JButton("Manage Fines");
-        b4.addActionListener(e -> new ManageFinesForm(db).setVisible(true));
-        JButton b5 = new JButton("Reports");
-        b5.addActionListener(e -> new ReportsForm(db).setVisible(true));
-
-        p.add(b1); p.add(b2); p.add(b3); p.add(b4); p.add(b5);
+        JButton b1 = Windows.button(db, "Manage Books", ManageBooksForm.class, () -> new ManageBooksForm(db));
+        JButton b2 = Windows.button(db, "Borrow/Return", BorrowReturnManageForm.class, () -> new BorrowReturnManageForm(db));
+        JButton b3 = Windows.button(db, "Manage Reservations", ManageReservationsForm.class, () -> new ManageReservationsForm(db));
+        JButton b4 = Windows.button(db, "Manage Fines", ManageFinesForm.class, () -> new ManageFinesForm(db));
+        JButton b5 = Windows.button(db, "Reports", ReportsForm.class, () -> new ReportsForm(db));
+        JButton b6 = Windows.button(db, "Circulation Analytics", AnalyticsReportsForm.class, () -> new AnalyticsReportsForm(db));
+        JButton b7 = Windows.button(db, "Search All Branches", FederatedSearchForm.class, () -> new FederatedSearchForm(db));
+        JButton b8 = Windows.button(db, "Notifications Outbox", NotificationsForm.class, () -> new NotificationsForm(db));
+
+        p.add(b1); p.add(b2); p.add(b3); p.add(b4); p.add(b5); p.add(b6); p.add(b7); p.add(b8);
         add(p);
+        Windows.attach(this, db);
     }
 }
 
@@ -883,31 +3237,429 @@ class AdminDashboard extends JFrame {
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
         JPanel p = new JPanel(new GridLayout(0,1,8,8));
-        JButton b1 = new JButton("Manage Users");
-        b1.addActionListener(e -> new ManageUsersForm(db).setVisible(true));
-        JButton b2 = new JButton("Manage Roles");
-        b2.addActionListener(e -> new ManageRolesForm(db).setVisible(true));
+        JButton b1 = Windows.button(db, "Manage Users", ManageUsersForm.class, () -> new ManageUsersForm(db));
+        JButton b2 = Windows.button(db, "Manage Roles", ManageRolesForm.class, () -> new ManageRolesForm(db));
         JButton b3 = new JButton("Backup Database");
         b3.addActionListener(e -> db.backup());
-        JButton b4 = new JButton("System Reports");
-        b4.addActionListener(e -> new SystemReportsForm(db).setVisible(true));
-        JButton b5 = new JButton("System Settings");
-        b5.addActionListener(e -> new SettingsForm(db).setVisible(true));
-        JButton b6 = new JButton("General Reports (KPIs)");
-        b6.addActionListener(e -> new ReportsForm(db).setVisible(true));
+        JButton b4 = Windows.button(db, "System Reports", SystemReportsForm.class, () -> new SystemReportsForm(db));
+        JButton b5 = Windows.button(db, "System Settings", SettingsForm.class, () -> new SettingsForm(db));
+        JButton b6 = Windows.button(db, "General Reports (KPIs)", ReportsForm.class, () -> new ReportsForm(db));
+        JButton b7 = Windows.button(db, "Circulation Analytics", AnalyticsReportsForm.class, () -> new AnalyticsReportsForm(db));
 
-        p.add(b1); p.add(b2); p.add(b3); p.add(b4); p.add(b5); p.add(b6);
+        p.add(b1); p.add(b2); p.add(b3); p.add(b4); p.add(b5); p.add(b6); p.add(b7);
         add(p);
+        Windows.attach(this, db);
+    }
+}
+
+// ======================= Batch Circulation =======================
+// إدخال ملفات مسح الباركود بدون واجهة:
+//   BORROW,<userId>,<bookId>[,<yyyy-MM-dd>]
+//   RETURN,<bookId>[,<yyyy-MM-dd>]
+// التحليل في خيط مستقل، والتحقق والتنفيذ على دفعات كل منها في معاملة واحدة
+class BatchCirculation {
+    static final int CHUNK = 1000;
+
+    static final class Scan {
+        final int line;
+        final String raw;
+        String action;
+        int userId, bookId;
+        LocalDate date;
+        String status, message;
+
+        Scan(int line, String raw) { this.line = line; this.raw = raw; }
+
+        void result(String status, String message) { this.status = status; this.message = message; }
+    }
+
+    private static final class Loan {
+        final int userId;
+        final LocalDate due;   // null if the stored due_date is missing or malformed
+
+        Loan(int userId, LocalDate due) { this.userId = userId; this.due = due; }
+    }
+
+    // تاريخ مخزن تالف يخص إعارة واحدة فقط ولا يجوز أن يُسقط الدفعة كلها
+    static LocalDate storedDate(String s) {
+        try { return s == null ? null : LocalDate.parse(s.trim()); }
+        catch (RuntimeException e) { return null; }
+    }
+
+    private static final List<Scan> END = new ArrayList<>();
+
+    private final Database db;
+    private int ok, rejected, failed;
+
+    BatchCirculation(Database db) { this.db = db; }
+
+    // يرجع 0 إذا نجحت كل الأسطر
+    int run(File scans, PrintStream report) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        BlockingQueue<List<Scan>> parsed = new ArrayBlockingQueue<>(4);
+        IOException[] readError = new IOException[1];
+
+        Thread parser = new Thread(() -> {
+            try (BufferedReader in = Files.newBufferedReader(scans.toPath(), StandardCharsets.UTF_8)) {
+                List<Scan> chunk = new ArrayList<>(CHUNK);
+                String line;
+                int no = 0;
+                while ((line = in.readLine()) != null) {
+                    no++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    chunk.add(parse(no, line));
+                    if (chunk.size() == CHUNK) { parsed.put(chunk); chunk = new ArrayList<>(CHUNK); }
+                }
+                if (!chunk.isEmpty()) parsed.put(chunk);
+            } catch (IOException e) {
+                readError[0] = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try { parsed.put(END); } catch (InterruptedException ignored) {}
+            }
+        }, "scan-parser");
+        parser.setDaemon(true);
+        parser.start();
+
+        int borrowDays = Integer.parseInt(db.getSetting("borrow_days", "14"));
+        int maxBorrow = Integer.parseInt(db.getSetting("max_borrow", "5"));
+        double finePerDay = Double.parseDouble(db.getSetting("fine_per_day", "1"));
+
+        report.println("line,action,status,message");
+        int total = 0;
+        try {
+            for (List<Scan> chunk = parsed.take(); chunk != END; chunk = parsed.take()) {
+                try {
+                    execute(chunk, borrowDays, maxBorrow, finePerDay);
+                } catch (SQLException | RuntimeException e) {
+                    // المعاملة أُلغيت: لا شيء من هذه الدفعة نُفّذ
+                    String why = e instanceof SQLException ? e.getMessage() : e.toString();
+                    for (Scan s : chunk) if (!"INVALID".equals(s.status)) s.result("ERROR", "batch rolled back: " + why);
+                }
+                for (Scan s : chunk) {
+                    switch (s.status) {
+                        case "OK": ok++; break;
+                        case "ERROR": failed++; break;
+                        default: rejected++;
+                    }
+                    report.println(s.line + "," + (s.action == null ? "" : s.action) + "," + s.status + "," + csv(s.message));
+                }
+                total += chunk.size();
+            }
+        } finally {
+            // خروج مبكر: القارئ قد ينتظر مكاناً في الطابور إلى الأبد
+            parser.interrupt();
+        }
+        parser.join();
+        if (readError[0] != null) throw readError[0];
+
+        long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.println("Batch: " + total + " scans (" + ok + " ok, " + rejected + " rejected, " + failed + " failed) in "
+                + ms + " ms, " + (total * 60_000L / ms) + " scans/min");
+        return rejected + failed == 0 ? 0 : 1;
+    }
+
+    static Scan parse(int line, String raw) {
+        Scan s = new Scan(line, raw);
+        String[] f = raw.split("\\s*[,;\\t]\\s*");
+        try {
+            String a = f[0].toUpperCase();
+            if (a.equals("B") || a.equals("BORROW")) {
+                s.action = "BORROW";
+                s.userId = Integer.parseInt(f[1]);
+                s.bookId = Integer.parseInt(f[2]);
+                s.date = f.length > 3 ? LocalDate.parse(f[3]) : LocalDate.now();
+            } else if (a.equals("R") || a.equals("RETURN")) {
+                s.action = "RETURN";
+                s.bookId = Integer.parseInt(f[1]);
+                s.date = f.length > 2 ? LocalDate.parse(f[2]) : LocalDate.now();
+            } else {
+                s.result("INVALID", "unknown action " + f[0]);
+            }
+        } catch (RuntimeException e) {
+            s.action = null;
+            s.result("INVALID", "cannot parse: " + raw);
+        }
+        return s;
+    }
+
+    private void execute(List<Scan> chunk, int borrowDays, int maxBorrow, double finePerDay) throws SQLException {
+        List<Scan> pending = new ArrayList<>();
+        Set<Integer> userIds = new HashSet<>(), bookIds = new HashSet<>();
+        for (Scan s : chunk) {
+            if (s.status != null) continue;
+            pending.add(s);
+            if ("BORROW".equals(s.action)) userIds.add(s.userId);
+            bookIds.add(s.bookId);
+        }
+
+        // inTransaction تعيد هذا الجزء كاملاً إذا كانت القاعدة مشغولة، لذلك نبدأ كل محاولة من الصفر
+        db.inTransaction(() -> {
+            for (Scan s : pending) s.result(null, null);
+
+            // جلب كل المستخدمين والكتب والإعارات المفتوحة للدفعة باستعلامات IN
+            Set<Integer> users = new HashSet<>();
+            Map<Integer,String> bookStatus = new HashMap<>();
+            Map<Integer,Loan> openByBook = new HashMap<>();
+            Map<Integer,Integer> openCount = new HashMap<>();
+            forEachRow(Sql.BATCH_USERS, userIds, rs -> users.add(rs.getInt(1)));
+            forEachRow(Sql.BATCH_BOOKS, bookIds, rs -> bookStatus.put(rs.getInt(1), rs.getString(2)));
+            forEachRow(Sql.BATCH_OPEN_LOANS, bookIds,
+                    rs -> openByBook.put(rs.getInt(1), new Loan(rs.getInt(2), storedDate(rs.getString(3)))));
+            forEachRow(Sql.BATCH_OPEN_COUNTS, userIds,
+                    rs -> openCount.put(rs.getInt(1), rs.getInt(2)));
+
+            try (PreparedStatement slot = db.prepare(Sql.ACCOUNT_LOAN_SLOT);
+                 PreparedStatement insert = db.prepare(Sql.LOAN_INSERT);
+                 PreparedStatement close = db.prepare(Sql.LOAN_CLOSE_BY_BOOK);
+                 PreparedStatement borrow = db.prepare(Sql.BOOK_BORROW);
+                 PreparedStatement book = db.prepare(Sql.BOOK_SET_STATUS)) {
+                for (Scan s : pending) {
+                    String st = bookStatus.get(s.bookId);
+                    if (st == null) { s.result("REJECTED", "book " + s.bookId + " not found"); continue; }
+
+                    if ("BORROW".equals(s.action)) {
+                        int open = openCount.getOrDefault(s.userId, 0);
+                        if (!users.contains(s.userId)) { s.result("REJECTED", "user " + s.userId + " not found"); continue; }
+                        if (!"available".equalsIgnoreCase(st)) { s.result("REJECTED", "book " + s.bookId + " is " + st); continue; }
+                        if (open >= maxBorrow) { s.result("REJECTED", "user " + s.userId + " reached max borrow limit (" + maxBorrow + ")"); continue; }
+                        // الحد يُفحص مرة أخرى تحت قفل الكتابة: مكتب آخر قد يعير المستخدم نفسه الآن
+                        slot.setInt(1, s.userId);
+                        slot.setInt(2, maxBorrow);
+                        if (slot.executeUpdate() == 0) {
+                            s.result("REJECTED", "user " + s.userId + " reached max borrow limit (" + maxBorrow + ") at another desk");
+                            continue;
+                        }
+                        // مكتب آخر قد يعير الكتاب بين القراءة والكتابة
+                        borrow.setInt(1, s.bookId);
+                        if (borrow.executeUpdate() == 0) {
+                            bookStatus.put(s.bookId, "borrowed");
+                            s.result("REJECTED", "book " + s.bookId + " was borrowed at another desk");
+                            continue;
+                        }
+                        LocalDate due = s.date.plusDays(borrowDays);
+                        insert.setInt(1, s.userId);
+                        insert.setInt(2, s.bookId);
+                        insert.setString(3, s.date.toString());
+                        insert.setString(4, due.toString());
+                        insert.executeUpdate();
+                        bookStatus.put(s.bookId, "borrowed");
+                        openByBook.put(s.bookId, new Loan(s.userId, due));
+                        openCount.put(s.userId, open + 1);
+                        s.result("OK", "due " + due);
+                    } else {
+                        Loan loan = openByBook.remove(s.bookId);
+                        if (loan == null) { s.result("REJECTED", "book " + s.bookId + " has no open loan"); continue; }
+                        if (loan.due == null) {
+                            openByBook.put(s.bookId, loan);
+                            s.result("ERROR", "open loan of book " + s.bookId + " has an invalid due_date; fix it and rescan");
+                            continue;
+                        }
+                        long late = Math.max(0, ChronoUnit.DAYS.between(loan.due, s.date));
+                        double fine = late * finePerDay;
+                        close.setString(1, s.date.toString());
+                        close.setDouble(2, fine);
+                        close.setInt(3, s.bookId);
+                        if (close.executeUpdate() == 0) {
+                            s.result("REJECTED", "book " + s.bookId + " was returned at another desk");
+                            continue;
+                        }
+                        book.setString(1, "available");
+                        book.setInt(2, s.bookId);
+                        book.executeUpdate();
+                        bookStatus.put(s.bookId, "available");
+                        openCount.merge(loan.userId, -1, Integer::sum);
+                        s.result("OK", "fine " + fine);
+                    }
+                }
+            }
+        });
+    }
+
+    private interface RowHandler { void row(ResultSet rs) throws SQLException; }
+
+    private void forEachRow(String sql, Set<Integer> ids, RowHandler handler) throws SQLException {
+        if (ids.isEmpty()) return;
+        try (ResultSet rs = db.query(Sql.in(sql, ids.size()), ids.toArray())) {
+            while (rs.next()) handler.row(rs);
+        }
+    }
+
+    private static String csv(String s) {
+        if (s == null) return "";
+        return s.contains(",") || s.contains("\"") ? "\"" + s.replace("\"", "\"\"") + "\"" : s;
+    }
+}
+
+// ======================= Plan Check =======================
+// يولّد قاعدة كبيرة ويشغّل EXPLAIN QUERY PLAN على كل جملة في Sql.ALL
+// يفشل (exit 1) إذا رجعت جملة مفهرسة إلى SCAN على جدول كبير
+class PlanCheck {
+    static final int BIG_TABLE = 1000;
+    static final int RUNS = 3;
+
+    static final class Result {
+        final Sql.Stmt stmt;
+        final List<String> plan = new ArrayList<>();
+        double millis;
+        String problem;
+        Result(Sql.Stmt stmt) { this.stmt = stmt; }
+    }
+
+    private final Database db;
+    private final Map<String,Integer> tableRows = new HashMap<>();
+    private final Set<String> partialIndexes = new HashSet<>();
+
+    PlanCheck(Database db) { this.db = db; }
+
+    // books = rows، transactions = 2 * rows، users = rows / 10
+    static void generate(Database db, int rows) throws SQLException {
+        Random rnd = new Random(42);
+        int users = Math.max(10, rows / 10), txs = rows * 2;
+        String[] words = {"history","river","silent","garden","stone","night","code","ocean","winter","empire","light","data"};
+        String[] cats = {"Fiction","Science","History","Art","Computing","Poetry","Law","Medicine"};
+        LocalDate base = LocalDate.now().minusDays(400);
+        db.inTransaction(() -> {
+            try (PreparedStatement u = db.prepare(Sql.USER_INSERT);
+                 PreparedStatement b = db.prepare(Sql.BOOK_INSERT);
+                 PreparedStatement t = db.prepare(
+                         "INSERT INTO transactions(user_id,book_id,borrow_date,due_date,return_date,fine,fine_settled) VALUES(?,?,?,?,?,?,?)");
+                 PreparedStatement r = db.prepare(Sql.RESERVATION_INSERT);
+                 PreparedStatement o = db.prepare(Sql.OUTBOX_INSERT)) {
+                for (int i=0;i<users;i++) {
+                    u.setString(1, "User " + i); u.setString(2, "Student");
+                    u.setString(3, "user" + i + "@lib.local"); u.setString(4, "x");
+                    u.addBatch();
+                }
+                u.executeBatch();
+                for (int i=0;i<rows;i++) {
+                    b.setString(1, words[rnd.nextInt(words.length)] + " " + words[rnd.nextInt(words.length)] + " " + i);
+                    b.setString(2, "Author " + rnd.nextInt(rows / 20 + 1));
+                    b.setString(3, cats[rnd.nextInt(cats.length)]);
+                    b.setInt(4, 1900 + rnd.nextInt(125));
+                    b.addBatch();
+                    if (i % 10_000 == 9_999) b.executeBatch();
+                }
+                b.executeBatch();
+                for (int i=0;i<txs;i++) {
+                    LocalDate borrowed = base.plusDays(rnd.nextInt(400));
+                    LocalDate due = borrowed.plusDays(14);
+                    boolean open = rnd.nextInt(20) == 0;
+                    int late = rnd.nextInt(10) == 0 ? 1 + rnd.nextInt(20) : 0;
+                    t.setInt(1, 2 + rnd.nextInt(users));
+                    t.setInt(2, 1 + rnd.nextInt(rows));
+                    t.setString(3, borrowed.toString());
+                    t.setString(4, due.toString());
+                    t.setString(5, open ? null : due.plusDays(late - 3).toString());
+                    t.setDouble(6, open ? 0 : late);
+                    t.setInt(7, rnd.nextBoolean() ? 1 : 0);
+                    t.addBatch();
+                    if (i % 10_000 == 9_999) t.executeBatch();
+                }
+                t.executeBatch();
+                for (int i=0;i<rows / 5;i++) {
+                    r.setInt(1, 2 + rnd.nextInt(users)); r.setInt(2, 1 + rnd.nextInt(rows));
+                    r.setString(3, base.plusDays(rnd.nextInt(400)).toString()); r.setString(4, "pending");
+                    r.addBatch();
+                }
+                r.executeBatch();
+                for (int i=0;i<users;i++) {
+                    o.setInt(1, 2 + i % users); o.setString(2, "overdue");
+                    o.setString(3, "Overdue books"); o.setString(4, "..."); o.setString(5, base.toString());
+                    o.addBatch();
+                }
+                o.executeBatch();
+            }
+            db.update("UPDATE books SET status='borrowed' WHERE id IN (SELECT book_id FROM transactions WHERE return_date IS NULL)");
+        });
+        db.update("ANALYZE");
+    }
+
+    List<Result> run() throws SQLException {
+        try (ResultSet rs = db.query("SELECT name FROM sqlite_master WHERE type='table' AND name NOT LIKE 'sqlite_%'")) {
+            List<String> names = new ArrayList<>();
+            while (rs.next()) names.add(rs.getString(1));
+            for (String n : names) {
+                try (ResultSet c = db.query("SELECT COUNT(*) FROM \"" + n + "\"")) { c.next(); tableRows.put(n, c.getInt(1)); }
+            }
+        }
+        try (ResultSet rs = db.query("SELECT name FROM sqlite_master WHERE type='index' AND sql LIKE '% WHERE %'")) {
+            while (rs.next()) partialIndexes.add(rs.getString(1));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Sql.Stmt s : Sql.ALL) {
+            Result r = new Result(s);
+            int plain = (int) s.sql.chars().filter(c -> c == '?').count() - (s.sql.contains("?*") ? 1 : 0);
+            String sql = s.sql.contains("?*") ? Sql.in(s.sql, s.sample.length - plain) : s.sql;
+            try (ResultSet rs = db.query("EXPLAIN QUERY PLAN " + sql, s.sample)) {
+                while (rs.next()) {
+                    String detail = rs.getString("detail");
+                    r.plan.add(detail);
+                    if (r.problem == null && !s.scanOk && fullScan(detail)) r.problem = "full scan: " + detail;
+                }
+            }
+            r.millis = time(sql, s.sample);
+            results.add(r);
+        }
+        return results;
+    }
+
+    // SCAN على جدول كبير؛ الفهارس الجزئية (WHERE return_date IS NULL ...) مسموحة لأنها تغطي جزءاً صغيراً
+    private boolean fullScan(String detail) {
+        if (!detail.startsWith("SCAN ") || detail.startsWith("SCAN CONSTANT ROW")) return false;
+        String[] parts = detail.split(" ");
+        for (int i=0;i<parts.length - 1;i++) {
+            if (parts[i].equals("INDEX") && partialIndexes.contains(parts[i+1])) return false;
+        }
+        Integer n = tableRows.get(parts[1]); // الأسماء المستعارة (t, b ...) تعتبر كبيرة
+        return n == null || n >= BIG_TABLE;
+    }
+
+    // أفضل زمن من عدة تشغيلات؛ الكتابات داخل savepoint وتُلغى
+    private double time(String sql, Object[] params) throws SQLException {
+        boolean read = sql.trim().toUpperCase().startsWith("SELECT");
+        long best = Long.MAX_VALUE;
+        for (int i=0;i<RUNS;i++) {
+            if (!read) db.update("SAVEPOINT plan_check");
+            long start = System.nanoTime();
+            if (read) {
+                try (ResultSet rs = db.query(sql, params)) { while (rs.next()) { } }
+            } else {
+                db.update(sql, params);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            if (!read) { db.update("ROLLBACK TO plan_check"); db.update("RELEASE plan_check"); }
+        }
+        return best / 1_000_000.0;
+    }
+
+    static int report(List<Result> results, PrintStream out) {
+        int failed = 0;
+        for (Result r : results) {
+            if (r.problem != null) failed++;
+            out.printf(Locale.ROOT, "%-4s %-24s %9.3f ms  %s%n", r.problem == null ? "OK" : "FAIL",
+                    r.stmt.name, r.millis, r.plan.isEmpty() ? "-" : String.join(" | ", r.plan));
+        }
+        out.println(results.size() + " statements, " + failed + " regressed to a full scan");
+        return failed == 0 ? 0 : 1;
     }
 }
 
 // ======================= Main =======================
 public class LibrarySystem {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) { System.exit(batch(args)); return; }
+        if (args.length > 0 && args[0].equals("--check-plans")) { System.exit(checkPlans(args)); return; }
+
         // تحسين شكل الواجهة الافتراضي
         try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored){}
 
         Database db = new Database();
+        db.catalogIndex(); // يبدأ بناء فهرس البحث في الخلفية
+        NotificationScheduler.start(db);
         SwingUtilities.invokeLater(() -> {
             String[] roles = {"Student","Librarian","Admin"};
             String role = (String) JOptionPane.showInputDialog(null, "Select role:", "Login",
@@ -921,4 +3673,59 @@ public class LibrarySystem {
             }
         });
     }
+
+    // java LibrarySystem --batch scans.csv [--report out.csv] [--db library.db]
+    static int batch(String[] args) {
+        String file = null, report = null, dbPath = Database.DEFAULT_PATH;
+        for (int i=1;i<args.length;i++) {
+            if (args[i].equals("--report") && i + 1 < args.length) report = args[++i];
+            else if (args[i].equals("--db") && i + 1 < args.length) dbPath = args[++i];
+            else file = args[i];
+        }
+        if (file == null) {
+            System.err.println("Usage: java LibrarySystem --batch <scan-file> [--report <out.csv>] [--db <library.db>]");
+            return 2;
+        }
+        Database db = new Database(dbPath);
+        PrintStream out = System.out;
+        try {
+            if (report != null) out = new PrintStream(new BufferedOutputStream(new FileOutputStream(report)), false, "UTF-8");
+            return new BatchCirculation(db).run(new File(file), out);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Batch failed: " + e.getMessage());
+            return 2;
+        } finally {
+            if (out != System.out) out.close();
+            db.close();
+        }
+    }
+
+    // java LibrarySystem --check-plans [--rows 100000] [--out plans.txt]
+    static int checkPlans(String[] args) {
+        int rows = 100_000;
+        String report = null;
+        for (int i=1;i<args.length;i++) {
+            if (args[i].equals("--rows") && i + 1 < args.length) rows = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--out") && i + 1 < args.length) report = args[++i];
+        }
+        File file = null;
+        Database db = null;
+        PrintStream out = System.out;
+        try {
+            file = File.createTempFile("plan-check", ".db");
+            db = new Database(file.getPath());
+            long start = System.nanoTime();
+            PlanCheck.generate(db, rows);
+            System.out.println("Generated " + rows + " books in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            if (report != null) out = new PrintStream(new FileOutputStream(report), true, "UTF-8");
+            return PlanCheck.report(new PlanCheck(db).run(), out);
+        } catch (IOException | SQLException e) {
+            System.err.println("Plan check failed: " + e.getMessage());
+            return 2;
+        } finally {
+            if (out != System.out) out.close();
+            if (db != null) db.close();
+            if (file != null) file.delete();
+        }
+    }
 }